@@ -0,0 +1,195 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.oauth20.token.TokenUtil;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.accessgrant.AccessGrant;
+import com.pingidentity.sdk.accessgrant.AccessGrantAttributesHolder;
+import com.pingidentity.sdk.accessgrant.AccessGrantManager;
+
+/**
+ * Measures the throughput of the access grant hot path against any {@link AccessGrantManager} implementation with a
+ * public no-argument constructor. Each trial fills a fresh store with {@code grantCount} grants, spread over one user
+ * per ten grants and one hundred clients, before the measured operations run against it.
+ *
+ * Copy the JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3) into sdk/benchmarks/lib and
+ * run the run-benchmarks target of the SDK build, which runs the benchmarks once for each thread count in the
+ * comma separated benchmark.threads property (1, 2, 4 and 8 by default) so that a single run shows how the hot path
+ * scales. Other implementations and grant counts can be selected with JMH's -p option, for example:
+ *
+ *   ant run-benchmarks -Dbenchmark.threads=1,16 -Dbenchmark.args="-p grantCount=10000"
+ *
+ * The 10 million grant runs need a large heap and direct memory, which the fork settings below provide.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx16g", "-XX:MaxDirectMemorySize=8g"})
+public class AccessGrantManagerBenchmark
+{
+    private static final int CLIENTS = 100;
+    private static final int GRANTS_PER_USER = 10;
+    private static final long GRANT_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    @Param({"10000", "1000000", "10000000"})
+    public int grantCount;
+
+    @Param({"com.pingidentity.accessgrant.SampleAccessGrant", "com.pingidentity.accessgrant.PersistentAccessGrant"})
+    public String implementation;
+
+    private AccessGrantManager accessGrantManager;
+    private Path dataDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        // Implementations that persist grants write them under the server directory, so give each trial its own
+        dataDirectory = Files.createTempDirectory("access-grant-benchmark");
+        System.setProperty("pf.server.default.dir", dataDirectory.toString());
+
+        accessGrantManager = (AccessGrantManager) Class.forName(implementation).getDeclaredConstructor().newInstance();
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < grantCount; i++) {
+            accessGrantManager.saveGrant(newAccessGrant(i, refreshToken(i), now), newAttributes(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        accessGrantManager = null;
+
+        try (Stream<Path> paths = Files.walk(dataDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Saves a grant over an existing one, so the size of the store stays constant across iterations.
+     */
+    @Benchmark
+    public void saveGrant()
+    {
+        int i = randomGrant();
+        accessGrantManager.saveGrant(newAccessGrant(i, refreshToken(i), System.currentTimeMillis()), newAttributes(i));
+    }
+
+    @Benchmark
+    public AccessGrant getByRefreshToken()
+    {
+        return accessGrantManager.getByRefreshToken(refreshToken(randomGrant()));
+    }
+
+    @Benchmark
+    public Collection<AccessGrant> getByUserKeyClientIdGrantType()
+    {
+        int i = randomGrant();
+        return accessGrantManager.getByUserKeyClientIdGrantType(userKey(i), clientId(i), "authorization_code");
+    }
+
+    /**
+     * Rotates the refresh token of a random grant, as the token endpoint does on each refresh.
+     */
+    @Benchmark
+    public void updateRefreshToken()
+    {
+        int i = randomGrant();
+        AccessGrant rotated = new AccessGrant(TokenUtil.digestToken(refreshToken(i) + "-" + System.nanoTime()),
+                                              guid(i), null, null, null, null, 0, 0, null, null);
+        accessGrantManager.updateRefreshToken(rotated);
+    }
+
+    /**
+     * Runs the periodic expiry sweep over a store in which no grant has expired yet, which is its usual state. This
+     * shows how much of the store the sweep visits to find nothing.
+     */
+    @Benchmark
+    public void deleteExpiredGrants()
+    {
+        accessGrantManager.deleteExpiredGrants();
+    }
+
+    private int randomGrant()
+    {
+        return ThreadLocalRandom.current().nextInt(grantCount);
+    }
+
+    private static AccessGrant newAccessGrant(int i, String refreshToken, long now)
+    {
+        return new AccessGrant(TokenUtil.digestToken(refreshToken), guid(i), userKey(i), "authorization_code",
+                               new com.pingidentity.sdk.oauth20.Scope("openid profile email"), clientId(i), now, now,
+                               now + GRANT_LIFETIME_MILLIS, "default");
+    }
+
+    private static AccessGrantAttributesHolder newAttributes(int i)
+    {
+        AttributeMap extendedGrantAttrs = new AttributeMap();
+        extendedGrantAttrs.put("sub", new AttributeValue(userKey(i)));
+        AttributeMap authnContextAttrs = new AttributeMap();
+        authnContextAttrs.put("acr", new AttributeValue("urn:acr:password"));
+
+        return new AccessGrantAttributesHolder(extendedGrantAttrs, authnContextAttrs);
+    }
+
+    private static String guid(int i)
+    {
+        return "grant-" + i;
+    }
+
+    private static String refreshToken(int i)
+    {
+        return "refresh-token-" + i;
+    }
+
+    private static String userKey(int i)
+    {
+        return "user-" + (i / GRANTS_PER_USER);
+    }
+
+    private static String clientId(int i)
+    {
+        return "client-" + (i % CLIENTS);
+    }
+}
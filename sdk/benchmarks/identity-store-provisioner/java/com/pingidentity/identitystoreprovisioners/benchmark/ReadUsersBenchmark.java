@@ -0,0 +1,350 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.identitystoreprovisioners.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.identitystoreprovisioners.sample.SampleIdentityStoreProvisioner;
+import com.pingidentity.sdk.provision.users.request.CreateUserRequestContext;
+import com.pingidentity.sdk.provision.users.request.ReadUsersRequestContext;
+import com.pingidentity.sdk.provision.users.response.UsersResponseContextImpl;
+
+/**
+ * Measures readUsers of the {@link SampleIdentityStoreProvisioner} over a store of {@code userCount} users, with the
+ * audit stream at each of its levels. At warn nothing is logged; at info one line is written per call; at debug the
+ * attributes of a sample of the returned users are written as well. The log implementation builds every message it is
+ * given but discards it, so the scores show the cost of producing the log output without the cost of writing it.
+ *
+ * Copy the JMH jars into sdk/benchmarks/lib and run the run-benchmarks target of the SDK build against this benchmark
+ * and the plugin it measures:
+ *
+ *   ant run-benchmarks -Dtarget-benchmark.name=identity-store-provisioner
+ *                      -Dtarget-benchmark.plugin.name=identity-store-provisioner-example
+ *
+ * The fork starts with its full heap, so the listing scores do not depend on how far the collector has grown it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g",
+                                  "-Dorg.apache.commons.logging.Log=com.pingidentity.identitystoreprovisioners.benchmark.ReadUsersBenchmark$DiscardingLog"})
+public class ReadUsersBenchmark
+{
+    private static final String[] TITLES = { "Engineer", "Manager", "Director", "Analyst", "Architect" };
+
+    @Param({"100000"})
+    public int userCount;
+
+    @Param({"warn", "info", "debug"})
+    public String auditLevel;
+
+    private SampleIdentityStoreProvisioner provisioner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        DiscardingLog.enabledLevel = DiscardingLog.levelOf(auditLevel);
+
+        provisioner = new SampleIdentityStoreProvisioner();
+        provisioner.setPermanentlyDeleteUser(true);
+
+        for (int i = 0; i < userCount; i++)
+        {
+            AttributeMap attributes = new AttributeMap();
+            attributes.put("username", "user" + i);
+            attributes.put("mail", "user" + i + "@example.com");
+            attributes.put("title", TITLES[i % TITLES.length]);
+            attributes.put("active", "true");
+            provisioner.createUser(createRequest(attributes));
+        }
+    }
+
+    /**
+     * Lists every user, as a provisioning connector does on a full sync.
+     */
+    @Benchmark
+    public UsersResponseContextImpl readAllUsers() throws Exception
+    {
+        return provisioner.readUsers(readRequest(null, null, 0, 0));
+    }
+
+    /**
+     * Lists the first page of users sorted by user name.
+     */
+    @Benchmark
+    public UsersResponseContextImpl readFirstPage() throws Exception
+    {
+        return provisioner.readUsers(readRequest(null, "userName", 1, 100));
+    }
+
+    /**
+     * Looks a user up by user name, as a provisioning connector does before creating or updating the user.
+     */
+    @Benchmark
+    public UsersResponseContextImpl readUserByUserName() throws Exception
+    {
+        String filter = "userName eq \"user" + ThreadLocalRandom.current().nextInt(userCount) + "\"";
+        return provisioner.readUsers(readRequest(filter, null, 0, 0));
+    }
+
+    private static CreateUserRequestContext createRequest(AttributeMap attributes)
+    {
+        return new CreateUserRequestContext()
+        {
+            @Override
+            public AttributeMap getUserAttributes()
+            {
+                return attributes;
+            }
+
+            @Override
+            public String getEntityId()
+            {
+                return "benchmark";
+            }
+        };
+    }
+
+    private static ReadUsersRequestContext readRequest(String filter, String sortBy, int startIndex, int count)
+    {
+        AttributeMap mapping = new AttributeMap();
+        mapping.put("userName", new AttributeValue("username"));
+        mapping.put("title", new AttributeValue("title"));
+
+        return new ReadUsersRequestContext()
+        {
+            @Override
+            public String getFilter()
+            {
+                return filter;
+            }
+
+            @Override
+            public String getSortBy()
+            {
+                return sortBy;
+            }
+
+            @Override
+            public String getSortOrder()
+            {
+                return "ascending";
+            }
+
+            @Override
+            public int getStartIndex()
+            {
+                return startIndex;
+            }
+
+            @Override
+            public int getCount()
+            {
+                return count;
+            }
+
+            @Override
+            public AttributeMap getSCIMTargetToSourceAttributeMapping()
+            {
+                return mapping;
+            }
+
+            @Override
+            public String getEntityId()
+            {
+                return "benchmark";
+            }
+        };
+    }
+
+    /**
+     * A commons-logging implementation that turns every enabled message into a string and then drops it.
+     */
+    public static class DiscardingLog implements Log
+    {
+        private static final int TRACE = 0;
+        private static final int DEBUG = 1;
+        private static final int INFO = 2;
+        private static final int WARN = 3;
+        private static final int ERROR = 4;
+        private static final int FATAL = 5;
+
+        static volatile int enabledLevel = WARN;
+
+        private static final LongAdder characters = new LongAdder();
+
+        public DiscardingLog(String name)
+        {
+        }
+
+        static int levelOf(String level)
+        {
+            switch (level)
+            {
+                case "trace":
+                    return TRACE;
+                case "debug":
+                    return DEBUG;
+                case "info":
+                    return INFO;
+                default:
+                    return WARN;
+            }
+        }
+
+        private static boolean isEnabled(int level)
+        {
+            return level >= enabledLevel;
+        }
+
+        private static void log(int level, Object message)
+        {
+            if (isEnabled(level))
+            {
+                characters.add(String.valueOf(message).length());
+            }
+        }
+
+        @Override
+        public boolean isTraceEnabled()
+        {
+            return isEnabled(TRACE);
+        }
+
+        @Override
+        public boolean isDebugEnabled()
+        {
+            return isEnabled(DEBUG);
+        }
+
+        @Override
+        public boolean isInfoEnabled()
+        {
+            return isEnabled(INFO);
+        }
+
+        @Override
+        public boolean isWarnEnabled()
+        {
+            return isEnabled(WARN);
+        }
+
+        @Override
+        public boolean isErrorEnabled()
+        {
+            return isEnabled(ERROR);
+        }
+
+        @Override
+        public boolean isFatalEnabled()
+        {
+            return isEnabled(FATAL);
+        }
+
+        @Override
+        public void trace(Object message)
+        {
+            log(TRACE, message);
+        }
+
+        @Override
+        public void trace(Object message, Throwable t)
+        {
+            log(TRACE, message);
+        }
+
+        @Override
+        public void debug(Object message)
+        {
+            log(DEBUG, message);
+        }
+
+        @Override
+        public void debug(Object message, Throwable t)
+        {
+            log(DEBUG, message);
+        }
+
+        @Override
+        public void info(Object message)
+        {
+            log(INFO, message);
+        }
+
+        @Override
+        public void info(Object message, Throwable t)
+        {
+            log(INFO, message);
+        }
+
+        @Override
+        public void warn(Object message)
+        {
+            log(WARN, message);
+        }
+
+        @Override
+        public void warn(Object message, Throwable t)
+        {
+            log(WARN, message);
+        }
+
+        @Override
+        public void error(Object message)
+        {
+            log(ERROR, message);
+        }
+
+        @Override
+        public void error(Object message, Throwable t)
+        {
+            log(ERROR, message);
+        }
+
+        @Override
+        public void fatal(Object message)
+        {
+            log(FATAL, message);
+        }
+
+        @Override
+        public void fatal(Object message, Throwable t)
+        {
+            log(FATAL, message);
+        }
+    }
+}
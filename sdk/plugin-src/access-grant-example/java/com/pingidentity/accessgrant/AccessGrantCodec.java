@@ -0,0 +1,213 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.accessgrant.AccessGrant;
+import com.pingidentity.sdk.accessgrant.AccessGrantAttributesHolder;
+import com.pingidentity.sdk.authorizationdetails.AuthorizationDetails;
+import com.pingidentity.sdk.oauth20.Scope;
+
+/**
+ * Binary encoding of access grants and their attributes. Strings are written as a length followed by their UTF-8
+ * bytes, with a length of -1 standing for null, so that every optional field of a grant survives a round trip.
+ *
+ * Only the string values of an attribute are encoded. Object values cannot be written without knowing their type
+ * and are dropped.
+ */
+class AccessGrantCodec
+{
+    private AccessGrantCodec()
+    {
+    }
+
+    static void writeAccessGrant(DataOutput out, AccessGrant accessGrant) throws IOException
+    {
+        writeString(out, accessGrant.getHashedRefreshTokenValue());
+        writeString(out, accessGrant.getGuid());
+        writeString(out, accessGrant.getUniqueUserIdentifer());
+        writeString(out, accessGrant.getGrantType());
+        writeString(out, accessGrant.getScope() != null ? accessGrant.getScope().getScopeStr() : null);
+        writeString(out, accessGrant.getClientId());
+        out.writeLong(accessGrant.getIssued());
+        out.writeLong(accessGrant.getUpdated());
+        out.writeBoolean(accessGrant.getExpires() != null);
+        if (accessGrant.getExpires() != null) {
+            out.writeLong(accessGrant.getExpires());
+        }
+        writeString(out, accessGrant.getContextualQualifier());
+        writeString(out, accessGrant.getAuthorizationDetails() != null ? accessGrant.getAuthorizationDetails().toJson() : null);
+    }
+
+    static AccessGrant readAccessGrant(DataInput in) throws IOException
+    {
+        String hashedRefreshTokenValue = readString(in);
+        String guid = readString(in);
+        String userKey = readString(in);
+        String grantType = readString(in);
+        String scope = readString(in);
+        String clientId = readString(in);
+        long issued = in.readLong();
+        long updated = in.readLong();
+        Long expires = in.readBoolean() ? in.readLong() : null;
+        String contextualQualifier = readString(in);
+        String authorizationDetails = readString(in);
+
+        AccessGrant accessGrant = new AccessGrant(hashedRefreshTokenValue, guid, userKey, grantType,
+                                                  scope != null ? new Scope(scope) : null, clientId,
+                                                  issued, updated, expires, contextualQualifier);
+        if (authorizationDetails != null) {
+            accessGrant.setAuthorizationDetails(new AuthorizationDetails(authorizationDetails));
+        }
+
+        return accessGrant;
+    }
+
+    static void writeAttributes(DataOutput out, AccessGrantAttributesHolder attributes) throws IOException
+    {
+        out.writeBoolean(attributes != null);
+        if (attributes != null) {
+            writeAttributeMap(out, attributes.getExtendedGrantAttrs());
+            writeAttributeMap(out, attributes.getAuthnContextAttrs());
+        }
+    }
+
+    static AccessGrantAttributesHolder readAttributes(DataInput in) throws IOException
+    {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        AttributeMap extendedGrantAttrs = readAttributeMap(in);
+        AttributeMap authnContextAttrs = readAttributeMap(in);
+
+        return new AccessGrantAttributesHolder(extendedGrantAttrs, authnContextAttrs);
+    }
+
+    private static void writeAttributeMap(DataOutput out, AttributeMap attributeMap) throws IOException
+    {
+        out.writeInt(attributeMap != null ? attributeMap.size() : -1);
+        if (attributeMap == null) {
+            return;
+        }
+
+        for (Map.Entry<String, AttributeValue> entry : attributeMap.entrySet()) {
+            writeString(out, entry.getKey());
+            AttributeValue value = entry.getValue();
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeBoolean(value.isMasked());
+                List<String> values = new ArrayList<>();
+                for (String v : value.getValues()) {
+                    values.add(v);
+                }
+                out.writeInt(values.size());
+                for (String v : values) {
+                    writeString(out, v);
+                }
+            }
+        }
+    }
+
+    private static AttributeMap readAttributeMap(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+
+        AttributeMap attributeMap = new AttributeMap();
+        for (int i = 0; i < size; i++) {
+            String name = readString(in);
+            AttributeValue value = null;
+            if (in.readBoolean()) {
+                boolean masked = in.readBoolean();
+                int count = in.readInt();
+                List<String> values = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    values.add(readString(in));
+                }
+                value = new AttributeValue(values);
+                value.setMasked(masked);
+            }
+            attributeMap.put(name, value);
+        }
+
+        return attributeMap;
+    }
+
+    /**
+     * Returns true if any attribute of the holder carries a value that is not a string.
+     */
+    static boolean hasObjectValues(AccessGrantAttributesHolder attributes)
+    {
+        return hasObjectValues(attributes.getExtendedGrantAttrs()) || hasObjectValues(attributes.getAuthnContextAttrs());
+    }
+
+    private static boolean hasObjectValues(AttributeMap attributeMap)
+    {
+        if (attributeMap == null) {
+            return false;
+        }
+
+        for (AttributeValue value : attributeMap.values()) {
+            if (value != null) {
+                for (Object objectValue : value.getAllObjectValues()) {
+                    if (objectValue != null && !(objectValue instanceof String)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
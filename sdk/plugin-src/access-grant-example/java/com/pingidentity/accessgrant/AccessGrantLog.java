@@ -0,0 +1,263 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only file of records. Each record is framed by its payload length and a CRC32 of the payload, so that a
+ * record torn by a crash is detected on the next start and cut off instead of being replayed.
+ *
+ * The log is replayed through read-only memory mappings of the file, a window at a time, which avoids copying the
+ * whole file through heap buffers at startup. Appends may come from any number of threads, and may carry on while
+ * {@link #rewrite} writes out a compacted log. Replay must finish before any other call.
+ */
+class AccessGrantLog
+{
+    private static final Log log = LogFactory.getLog(AccessGrantLog.class);
+
+    /**
+     * The size of the frame header: the payload length followed by the payload CRC32.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the region of the file mapped at a time during replay.
+     */
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final Path path;
+
+    // The fields below are guarded by this log's monitor; the record count is also read without it
+    private FileChannel channel;
+    private volatile long recordCount;
+
+    AccessGrantLog(Path path) throws IOException
+    {
+        this.path = path;
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Passes the payload of every intact record to the consumer, in the order they were appended. If the file ends
+     * with a torn or corrupt record, the file is truncated to the last intact record so that appends continue from
+     * there.
+     *
+     * @return the number of records replayed.
+     */
+    long replay(Consumer<byte[]> consumer) throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        long windowStart = 0;
+        MappedByteBuffer window = null;
+        CRC32 crc = new CRC32();
+
+        while (position + HEADER_SIZE <= size) {
+            if (window == null || position + HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = map(windowStart, MAP_WINDOW_SIZE, size);
+            }
+
+            int offset = (int) (position - windowStart);
+            int length = window.getInt(offset);
+            int checksum = window.getInt(offset + 4);
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+
+            if (offset + HEADER_SIZE + length > window.limit()) {
+                // The record straddles the end of the window, so map a new window starting at the record
+                windowStart = position;
+                window = map(windowStart, Math.max(MAP_WINDOW_SIZE, HEADER_SIZE + length), size);
+                offset = 0;
+            }
+
+            byte[] payload = new byte[length];
+            ByteBuffer record = window.duplicate();
+            record.position(offset + HEADER_SIZE);
+            record.get(payload);
+
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            consumer.accept(payload);
+            position += HEADER_SIZE + length;
+            recordCount++;
+        }
+
+        if (position < size) {
+            log.warn("Truncating " + (size - position) + " bytes of incomplete records from the end of " + path);
+            channel.truncate(position);
+        }
+        channel.position(position);
+
+        return recordCount;
+    }
+
+    /**
+     * Appends a record with the given payload to the end of the log.
+     */
+    void append(byte[] payload) throws IOException
+    {
+        ByteBuffer frame = frame(payload);
+
+        synchronized (this) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            recordCount++;
+        }
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     */
+    void force() throws IOException
+    {
+        FileChannel current;
+        synchronized (this) {
+            current = channel;
+        }
+
+        try {
+            current.force(false);
+        }
+        catch (ClosedChannelException e) {
+            // A rewrite swapped the file underneath, and it forces the new file before the swap
+        }
+    }
+
+    /**
+     * Replaces the contents of the log with the records produced by the given writer, followed by any records appended
+     * while the writer ran. The records are written to a temporary file that is synced and then atomically moved over
+     * the log, so a crash part way through leaves the previous log in place. Appends are only held up while the
+     * records appended during the rewrite are copied over and the files are swapped.
+     *
+     * The writer must include every change appended before the rewrite started. Changes appended later may or may
+     * not be included, since their records are replayed after the writer's records anyway.
+     */
+    void rewrite(Consumer<Consumer<byte[]>> writer) throws IOException
+    {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long[] written = new long[1];
+        long tailStart;
+        long recordsBefore;
+
+        synchronized (this) {
+            tailStart = channel.position();
+            recordsBefore = recordCount;
+        }
+
+        FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                           StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            try {
+                writer.accept(payload -> {
+                    try {
+                        ByteBuffer frame = frame(payload);
+                        while (frame.hasRemaining()) {
+                            out.write(frame);
+                        }
+                        written[0]++;
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.force(true);
+
+            synchronized (this) {
+                long tailEnd = channel.position();
+                for (long position = tailStart; position < tailEnd; ) {
+                    position += channel.transferTo(position, tailEnd - position, out);
+                }
+                out.force(true);
+                out.close();
+
+                long tailRecords = recordCount - recordsBefore;
+                channel.close();
+                try {
+                    Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    recordCount = written[0] + tailRecords;
+                }
+                finally {
+                    // Reopen whichever file is now in place, so appends continue even if the move failed
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.position(channel.size());
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of records currently in the log, live or superseded.
+     */
+    long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    private MappedByteBuffer map(long position, long length, long size) throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(length, size - position));
+    }
+
+    private static ByteBuffer frame(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        frame.flip();
+
+        return frame;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.util.function.Predicate;
+
+import com.pingidentity.sdk.accessgrant.AccessGrant;
+import com.pingidentity.sdk.accessgrant.exception.AccessGrantManagementException;
+
+/**
+ * Revokes many access grants in a single call, such as every grant of a compromised user or of a decommissioned
+ * client. Each operation makes one pass over the matching grants instead of a lookup followed by one
+ * {@code revokeGrant} call per grant.
+ *
+ * Grants saved while an operation is running may or may not be revoked by it.
+ */
+public interface BulkAccessGrantRevocation
+{
+    /**
+     * Revokes every access grant issued to the given user.
+     *
+     * @param userKey
+     *            the unique user identifier whose access grants are to be revoked.
+     * @return the number of access grants revoked.
+     * @throws AccessGrantManagementException
+     *             A general exception for any unexpected runtime errors that might occur during an access grant operation.
+     */
+    int revokeGrantsForUser(String userKey) throws AccessGrantManagementException;
+
+    /**
+     * Revokes every access grant issued to the given client.
+     *
+     * @param clientId
+     *            the client id whose access grants are to be revoked.
+     * @return the number of access grants revoked.
+     * @throws AccessGrantManagementException
+     *             A general exception for any unexpected runtime errors that might occur during an access grant operation.
+     */
+    int revokeGrantsForClient(String clientId) throws AccessGrantManagementException;
+
+    /**
+     * Revokes every access grant accepted by the given predicate. Unlike the other operations this visits every
+     * stored grant.
+     *
+     * @param predicate
+     *            the test an access grant must pass to be revoked.
+     * @return the number of access grants revoked.
+     * @throws AccessGrantManagementException
+     *             A general exception for any unexpected runtime errors that might occur during an access grant operation.
+     */
+    int revokeGrants(Predicate<AccessGrant> predicate) throws AccessGrantManagementException;
+}
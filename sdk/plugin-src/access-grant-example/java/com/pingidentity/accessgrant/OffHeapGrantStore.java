@@ -0,0 +1,695 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.accessgrant.AccessGrant;
+import com.pingidentity.sdk.accessgrant.AccessGrantAttributesHolder;
+import com.pingidentity.sdk.accessgrant.exception.AccessGrantManagementException;
+import com.pingidentity.sdk.authorizationdetails.AuthorizationDetails;
+import com.pingidentity.sdk.oauth20.Scope;
+
+/**
+ * Stores access grants and their attributes outside the Java heap, in a compact binary form, so that millions of
+ * grants do not add to garbage collection work. Each stored grant is identified by a {@code long} handle.
+ *
+ * Records live in 1 MB direct buffers ("slabs"). Every slab is cut into slots of one size class, and a freed slot
+ * is reused by the next record of the same size class, so the store never has to move records around. A slot starts
+ * with a generation number that is bumped when the slot is freed. Handles carry the generation they were issued
+ * with, which lets readers run without locks: a read checks the generation before and after decoding, and if the
+ * slot was freed in between the read fails with {@link StaleRecordException} and the caller looks the grant up
+ * again.
+ *
+ * A record is laid out as follows. Scope, client id, grant type, contextual qualifier and attribute names repeat
+ * across grants, so they are interned and stored as small ids.
+ *
+ * <pre>
+ *  long     expires, or Long.MIN_VALUE if the grant does not expire
+ *  long     issued
+ *  long     updated
+ *  varint   interned scope, client id, grant type and contextual qualifier (0 for null)
+ *  string   guid, user key, hashed refresh token, authorization details JSON
+ *  byte     1 if attributes follow, 2 if they are held on the heap, 0 if there are none
+ *  map      extended grant attributes, authentication context attributes
+ * </pre>
+ *
+ * A string is a varint of its UTF-8 length plus one (0 for null) followed by the bytes. A map is a varint of its size
+ * plus one (0 for null), then for each attribute the interned name, a flags byte, a varint value count and the
+ * values.
+ *
+ * Only string values can be encoded. Attributes that carry object values are kept on the heap as the holder that was
+ * saved, keyed by the record's handle, so they come back exactly as they went in.
+ *
+ * Fields are decoded only when asked for, so checking a grant's expiry or user key does not build the grant.
+ * Direct memory is limited by the -XX:MaxDirectMemorySize JVM option, which should be sized for the expected
+ * number of grants.
+ */
+class OffHeapGrantStore
+{
+    /**
+     * Thrown when a handle no longer refers to the record it was issued for.
+     */
+    static final class StaleRecordException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private StaleRecordException()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final StaleRecordException STALE = new StaleRecordException();
+
+    private static final int SLAB_SIZE = 1 << 20;
+
+    // A handle is the slot generation, the slab index and the slot offset packed into a long
+    private static final int OFFSET_BITS = 20;
+    private static final int SLAB_BITS = 20;
+    private static final int GENERATION_MASK = 0xFFFFFF;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long SLAB_MASK = (1L << SLAB_BITS) - 1;
+
+    /**
+     * Each slot starts with its generation and the length of the record it holds.
+     */
+    private static final int SLOT_HEADER_SIZE = 8;
+
+    private static final int FIXED_FIELDS_SIZE = 24;
+    private static final long NO_EXPIRY = Long.MIN_VALUE;
+
+    private static final int NO_ATTRIBUTES = 0;
+    private static final int ENCODED_ATTRIBUTES = 1;
+    private static final int HEAP_ATTRIBUTES = 2;
+
+    private static final int ATTRIBUTE_HAS_VALUE = 1;
+    private static final int ATTRIBUTE_MASKED = 2;
+
+    /**
+     * Slot sizes, growing by half from 32 bytes up to a whole slab.
+     */
+    private static final int[] SLOT_SIZES;
+
+    static
+    {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = 32; size < SLAB_SIZE; size = (size + size / 2 + 7) & ~7) {
+            sizes.add(size);
+        }
+        sizes.add(SLAB_SIZE);
+        SLOT_SIZES = sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static final ThreadLocal<RecordWriter> RECORD_WRITER = ThreadLocal.withInitial(RecordWriter::new);
+
+    private final StringTable strings = new StringTable();
+
+    /**
+     * The attributes that hold object values, by the handle of their record.
+     */
+    private final Map<Long, AccessGrantAttributesHolder> heapAttributes = new ConcurrentHashMap<>();
+    private final SizeClass[] sizeClasses = new SizeClass[SLOT_SIZES.length];
+    private volatile Slab[] slabs = new Slab[0];
+
+    OffHeapGrantStore()
+    {
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            sizeClasses[i] = new SizeClass(SLOT_SIZES[i]);
+        }
+    }
+
+    /**
+     * Encodes the grant and its attributes into a free slot.
+     *
+     * @return the handle of the stored record.
+     */
+    long store(AccessGrant accessGrant, AccessGrantAttributesHolder attributes)
+    {
+        boolean attributesOnHeap = attributes != null && AccessGrantCodec.hasObjectValues(attributes);
+        RecordWriter writer = RECORD_WRITER.get();
+        writer.reset();
+        encode(writer, accessGrant, attributes, attributesOnHeap);
+
+        SizeClass sizeClass = sizeClassFor(SLOT_HEADER_SIZE + writer.size);
+        if (sizeClass == null) {
+            throw new AccessGrantManagementException("Access grant " + accessGrant.getGuid() + " is too large to store (" +
+                                                     writer.size + " bytes)");
+        }
+
+        long slot = sizeClass.allocate();
+        int slabIndex = (int) (slot >>> OFFSET_BITS);
+        int offset = (int) (slot & OFFSET_MASK);
+        ByteBuffer buffer = slabs[slabIndex].buffer;
+
+        buffer.putInt(offset + 4, writer.size);
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + SLOT_HEADER_SIZE);
+        record.put(writer.bytes, 0, writer.size);
+
+        int generation = buffer.getInt(offset) & GENERATION_MASK;
+        long handle = ((long) generation << (SLAB_BITS + OFFSET_BITS)) | slot;
+        if (attributesOnHeap) {
+            heapAttributes.put(handle, attributes);
+        }
+        return handle;
+    }
+
+    /**
+     * Releases the slot of the given record. Readers still holding the handle get a {@link StaleRecordException}.
+     */
+    void free(long handle)
+    {
+        Slab slab = slabs[slabIndex(handle)];
+        int offset = offset(handle);
+
+        slab.buffer.putInt(offset, (generation(handle) + 1) & GENERATION_MASK);
+        // The new generation must be visible before the slot can be handed out and overwritten
+        VarHandle.storeStoreFence();
+        if (!heapAttributes.isEmpty()) {
+            heapAttributes.remove(handle);
+        }
+        slab.sizeClass.release(handle & ((SLAB_MASK << OFFSET_BITS) | OFFSET_MASK));
+    }
+
+    AccessGrant readAccessGrant(long handle)
+    {
+        return read(handle, this::decodeAccessGrant);
+    }
+
+    AccessGrantAttributesHolder readAttributes(long handle)
+    {
+        return read(handle, record -> {
+            skipToStrings(record);
+            for (int i = 0; i < 4; i++) {
+                skipString(record);
+            }
+            return decodeAttributes(record, handle);
+        });
+    }
+
+    /**
+     * Returns the expiry of the grant, or null if it does not expire.
+     */
+    Long readExpires(long handle)
+    {
+        return read(handle, record -> {
+            long expires = record.getLong();
+            return expires != NO_EXPIRY ? expires : null;
+        });
+    }
+
+    String readUserKey(long handle)
+    {
+        return read(handle, record -> {
+            skipToStrings(record);
+            skipString(record);
+            return readString(record);
+        });
+    }
+
+    String readScope(long handle)
+    {
+        return read(handle, record -> {
+            record.position(record.position() + FIXED_FIELDS_SIZE);
+            return strings.get(readVarInt(record));
+        });
+    }
+
+    String readClientId(long handle)
+    {
+        return read(handle, record -> {
+            record.position(record.position() + FIXED_FIELDS_SIZE);
+            readVarInt(record);
+            return strings.get(readVarInt(record));
+        });
+    }
+
+    String readContextualQualifier(long handle)
+    {
+        return read(handle, record -> {
+            record.position(record.position() + FIXED_FIELDS_SIZE);
+            for (int i = 0; i < 3; i++) {
+                readVarInt(record);
+            }
+            return strings.get(readVarInt(record));
+        });
+    }
+
+    String readAuthorizationDetails(long handle)
+    {
+        return read(handle, record -> {
+            skipToStrings(record);
+            for (int i = 0; i < 3; i++) {
+                skipString(record);
+            }
+            return readString(record);
+        });
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by the slabs.
+     */
+    long getOffHeapBytes()
+    {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    /**
+     * Decodes part of a record while checking that its slot is not freed underneath the read.
+     */
+    private <T> T read(long handle, Function<ByteBuffer, T> decoder)
+    {
+        ByteBuffer buffer = slabs[slabIndex(handle)].buffer;
+        int offset = offset(handle);
+        int generation = generation(handle);
+
+        if ((buffer.getInt(offset) & GENERATION_MASK) != generation) {
+            throw STALE;
+        }
+        VarHandle.loadLoadFence();
+
+        T value;
+        try {
+            ByteBuffer record = buffer.duplicate();
+            record.limit(offset + SLOT_HEADER_SIZE + buffer.getInt(offset + 4));
+            record.position(offset + SLOT_HEADER_SIZE);
+            value = decoder.apply(record);
+        }
+        catch (RuntimeException e) {
+            // A slot reused during the read can hold anything, so only trust the failure if the slot is unchanged
+            VarHandle.loadLoadFence();
+            if ((buffer.getInt(offset) & GENERATION_MASK) != generation) {
+                throw STALE;
+            }
+            throw e;
+        }
+
+        VarHandle.loadLoadFence();
+        if ((buffer.getInt(offset) & GENERATION_MASK) != generation) {
+            throw STALE;
+        }
+
+        return value;
+    }
+
+    private void encode(RecordWriter writer, AccessGrant accessGrant, AccessGrantAttributesHolder attributes,
+                        boolean attributesOnHeap)
+    {
+        writer.writeLong(accessGrant.getExpires() != null ? accessGrant.getExpires() : NO_EXPIRY);
+        writer.writeLong(accessGrant.getIssued());
+        writer.writeLong(accessGrant.getUpdated());
+        writer.writeVarInt(strings.intern(accessGrant.getScope() != null ? accessGrant.getScope().getScopeStr() : null));
+        writer.writeVarInt(strings.intern(accessGrant.getClientId()));
+        writer.writeVarInt(strings.intern(accessGrant.getGrantType()));
+        writer.writeVarInt(strings.intern(accessGrant.getContextualQualifier()));
+        writer.writeString(accessGrant.getGuid());
+        writer.writeString(accessGrant.getUniqueUserIdentifer());
+        writer.writeString(accessGrant.getHashedRefreshTokenValue());
+        writer.writeString(accessGrant.getAuthorizationDetails() != null ? accessGrant.getAuthorizationDetails().toJson() : null);
+
+        if (attributes == null) {
+            writer.writeByte(NO_ATTRIBUTES);
+        }
+        else if (attributesOnHeap) {
+            writer.writeByte(HEAP_ATTRIBUTES);
+        }
+        else {
+            writer.writeByte(ENCODED_ATTRIBUTES);
+            encodeAttributeMap(writer, attributes.getExtendedGrantAttrs());
+            encodeAttributeMap(writer, attributes.getAuthnContextAttrs());
+        }
+    }
+
+    private void encodeAttributeMap(RecordWriter writer, AttributeMap attributeMap)
+    {
+        if (attributeMap == null) {
+            writer.writeVarInt(0);
+            return;
+        }
+
+        writer.writeVarInt(attributeMap.size() + 1);
+        for (Map.Entry<String, AttributeValue> entry : attributeMap.entrySet()) {
+            writer.writeVarInt(strings.intern(entry.getKey()));
+            AttributeValue value = entry.getValue();
+            if (value == null) {
+                writer.writeByte(0);
+                continue;
+            }
+
+            writer.writeByte(ATTRIBUTE_HAS_VALUE | (value.isMasked() ? ATTRIBUTE_MASKED : 0));
+            List<String> values = new ArrayList<>();
+            for (String v : value.getValues()) {
+                values.add(v);
+            }
+            writer.writeVarInt(values.size());
+            for (String v : values) {
+                writer.writeString(v);
+            }
+        }
+    }
+
+    private AccessGrant decodeAccessGrant(ByteBuffer record)
+    {
+        long expires = record.getLong();
+        long issued = record.getLong();
+        long updated = record.getLong();
+        String scope = strings.get(readVarInt(record));
+        String clientId = strings.get(readVarInt(record));
+        String grantType = strings.get(readVarInt(record));
+        String contextualQualifier = strings.get(readVarInt(record));
+        String guid = readString(record);
+        String userKey = readString(record);
+        String hashedRefreshTokenValue = readString(record);
+        String authorizationDetails = readString(record);
+
+        AccessGrant accessGrant = new AccessGrant(hashedRefreshTokenValue, guid, userKey, grantType,
+                                                  scope != null ? new Scope(scope) : null, clientId, issued, updated,
+                                                  expires != NO_EXPIRY ? expires : null, contextualQualifier);
+        if (authorizationDetails != null) {
+            try {
+                accessGrant.setAuthorizationDetails(new AuthorizationDetails(authorizationDetails));
+            }
+            catch (IOException e) {
+                throw new AccessGrantManagementException("Unable to read the authorization details of access grant " + guid, e);
+            }
+        }
+
+        return accessGrant;
+    }
+
+    private AccessGrantAttributesHolder decodeAttributes(ByteBuffer record, long handle)
+    {
+        int kind = record.get();
+        if (kind == NO_ATTRIBUTES) {
+            return null;
+        }
+        if (kind == HEAP_ATTRIBUTES) {
+            // Null if the record was freed in the meantime, which the generation check after the read reports
+            return heapAttributes.get(handle);
+        }
+
+        AttributeMap extendedGrantAttrs = decodeAttributeMap(record);
+        AttributeMap authnContextAttrs = decodeAttributeMap(record);
+
+        return new AccessGrantAttributesHolder(extendedGrantAttrs, authnContextAttrs);
+    }
+
+    private AttributeMap decodeAttributeMap(ByteBuffer record)
+    {
+        int size = readVarInt(record) - 1;
+        if (size < 0) {
+            return null;
+        }
+
+        AttributeMap attributeMap = new AttributeMap();
+        for (int i = 0; i < size; i++) {
+            String name = strings.get(readVarInt(record));
+            int flags = record.get();
+            AttributeValue value = null;
+            if ((flags & ATTRIBUTE_HAS_VALUE) != 0) {
+                int count = readVarInt(record);
+                // Every value takes at least one byte, so a larger count can only come from a reused slot
+                if (count < 0 || count > record.remaining()) {
+                    throw new IllegalStateException("Corrupt access grant record");
+                }
+                List<String> values = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    values.add(readString(record));
+                }
+                value = new AttributeValue(values);
+                value.setMasked((flags & ATTRIBUTE_MASKED) != 0);
+            }
+            attributeMap.put(name, value);
+        }
+
+        return attributeMap;
+    }
+
+    /**
+     * Moves the record position past the fixed fields and the interned ids, to the guid.
+     */
+    private static void skipToStrings(ByteBuffer record)
+    {
+        record.position(record.position() + FIXED_FIELDS_SIZE);
+        for (int i = 0; i < 4; i++) {
+            readVarInt(record);
+        }
+    }
+
+    private static int readVarInt(ByteBuffer record)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = record.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static String readString(ByteBuffer record)
+    {
+        int length = readVarInt(record) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > record.remaining()) {
+            throw new IllegalStateException("Corrupt access grant record");
+        }
+
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer record)
+    {
+        int length = readVarInt(record) - 1;
+        if (length > 0) {
+            record.position(record.position() + length);
+        }
+    }
+
+    private SizeClass sizeClassFor(int size)
+    {
+        int index = Arrays.binarySearch(SLOT_SIZES, size);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < sizeClasses.length ? sizeClasses[index] : null;
+    }
+
+    private int newSlab(SizeClass sizeClass)
+    {
+        synchronized (sizeClasses) {
+            Slab[] current = slabs;
+            if (current.length > SLAB_MASK) {
+                throw new AccessGrantManagementException("The off-heap access grant store is full");
+            }
+
+            Slab[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE), sizeClass);
+            slabs = grown;
+            return current.length;
+        }
+    }
+
+    private static int slabIndex(long handle)
+    {
+        return (int) ((handle >>> OFFSET_BITS) & SLAB_MASK);
+    }
+
+    private static int offset(long handle)
+    {
+        return (int) (handle & OFFSET_MASK);
+    }
+
+    private static int generation(long handle)
+    {
+        return (int) (handle >>> (SLAB_BITS + OFFSET_BITS)) & GENERATION_MASK;
+    }
+
+    private static class Slab
+    {
+        final ByteBuffer buffer;
+        final SizeClass sizeClass;
+
+        Slab(ByteBuffer buffer, SizeClass sizeClass)
+        {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    /**
+     * Hands out slots of one size, reusing freed slots before cutting new ones from its current slab.
+     */
+    private class SizeClass
+    {
+        private final int slotSize;
+        private long[] freeSlots = new long[16];
+        private int freeCount;
+        private int currentSlab = -1;
+        private int nextOffset = SLAB_SIZE;
+
+        SizeClass(int slotSize)
+        {
+            this.slotSize = slotSize;
+        }
+
+        synchronized long allocate()
+        {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+
+            if (nextOffset + slotSize > SLAB_SIZE) {
+                currentSlab = newSlab(this);
+                nextOffset = 0;
+            }
+
+            long slot = ((long) currentSlab << OFFSET_BITS) | nextOffset;
+            nextOffset += slotSize;
+            return slot;
+        }
+
+        synchronized void release(long slot)
+        {
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * Assigns small ids to strings that repeat across grants. Id 0 stands for null. Strings are never removed, which
+     * is fine for the low number of distinct scopes, clients, grant types and attribute names.
+     */
+    private static class StringTable
+    {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[64];
+        private int size = 1;
+
+        int intern(String value)
+        {
+            if (value == null) {
+                return 0;
+            }
+
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            synchronized (this) {
+                id = ids.get(value);
+                if (id == null) {
+                    String[] current = values;
+                    if (size == current.length) {
+                        current = Arrays.copyOf(current, size * 2);
+                    }
+                    current[size] = value;
+                    values = current;
+                    id = size++;
+                    ids.put(value, id);
+                }
+                return id;
+            }
+        }
+
+        String get(int id)
+        {
+            return values[id];
+        }
+    }
+
+    /**
+     * A growable buffer that a record is encoded into before it is copied to its slot.
+     */
+    private static class RecordWriter
+    {
+        private byte[] bytes = new byte[512];
+        private int size;
+
+        void reset()
+        {
+            size = 0;
+        }
+
+        void writeByte(int value)
+        {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeLong(long value)
+        {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarInt(int value)
+        {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeString(String value)
+        {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(encoded.length + 1);
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+
+        private void ensureCapacity(int additional)
+        {
+            if (size + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+            }
+        }
+    }
+}
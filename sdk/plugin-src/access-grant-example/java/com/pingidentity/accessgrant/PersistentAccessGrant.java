@@ -0,0 +1,481 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.pingidentity.sdk.accessgrant.AccessGrant;
+import com.pingidentity.sdk.accessgrant.AccessGrantAttributesHolder;
+import com.pingidentity.sdk.accessgrant.AccessGrantCriteria;
+import com.pingidentity.sdk.accessgrant.AccessGrantManager;
+import com.pingidentity.sdk.accessgrant.exception.AccessGrantManagementException;
+import com.pingidentity.sdk.oauth20.Scope;
+
+/**
+ * This class provides a sample implementation for access grants that survive a restart of the PingFederate server.
+ * Grants are held and looked up in memory exactly as in {@link SampleAccessGrant}, and every change is also appended
+ * to a local log file. On startup the log is replayed to rebuild the grants, so clients keep their refresh tokens
+ * across a rolling deploy without a database round trip on each lookup.
+ *
+ * The log is written to ./server/default/data/access-grants/access-grants.log. When it holds more than twice as many
+ * records as there are live grants, a background thread compacts it by writing the live grants to a new file and
+ * swapping it in; writes carry on appending to the old log meanwhile, and the records they add are copied over just
+ * before the swap.
+ *
+ * Writes to the same grant are serialized by a striped lock chosen by the grant guid, so the log records of a grant
+ * are in the same order as its changes while writes to unrelated grants proceed in parallel. Appended records reach
+ * the operating system at once, so they survive a crash of the server process, but they are only forced to disk
+ * once a second. A power failure or operating system crash can lose the changes of the last second.
+ *
+ * Only the string values of grant attributes are logged. Object values, which {@link SampleAccessGrant} keeps as
+ * they were saved, do not survive a restart.
+ *
+ * To use this implementation, modify ./server/default/conf/service-points.conf and change:
+ *
+ *   # Service for storage of access grants
+ *   access.grant.manager=org.sourceid.oauth20.token.AccessGrantManagerJdbcImpl
+ *
+ *  to become:
+ *
+ *   # Service for storage of access grants
+ *   access.grant.manager=com.pingidentity.accessgrant.PersistentAccessGrant
+ *
+ *   Follow the instructions in the SDK Developer's Guide for building and deploying.
+ *
+ *  As with {@link SampleAccessGrant}, the grants are local to a given PingFederate server, so this implementation
+ *  can not support HA or DR architectures.
+ */
+public class PersistentAccessGrant implements AccessGrantManager, BulkAccessGrantRevocation
+{
+    private static final Log log = LogFactory.getLog(PersistentAccessGrant.class);
+
+    // Record types written to the log
+    private static final byte SAVE_RECORD = 1;
+    private static final byte REVOKE_RECORD = 2;
+    private static final byte ATTRIBUTES_RECORD = 3;
+
+    /**
+     * The log is not compacted until it holds at least this many records.
+     */
+    private static final long MIN_RECORDS_FOR_COMPACTION = 10000;
+
+    /**
+     * How often appended records are forced to disk.
+     */
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    /**
+     * The number of striped write locks. A power of two so that a stripe can be picked with a mask.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The in-memory grants and indexes, rebuilt from the log on startup.
+     */
+    private final SampleAccessGrant accessGrants = new SampleAccessGrant();
+
+    /**
+     * The log of changes. Readers never touch it.
+     */
+    private final AccessGrantLog grantLog;
+
+    /**
+     * The striped locks that a write holds while it changes a grant in memory and logs the change, so that the records
+     * of a grant are in the same order as its changes.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Forces the log to disk and compacts it.
+     */
+    private final ScheduledExecutorService logExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "access-grant-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final AtomicBoolean objectValuesWarned = new AtomicBoolean();
+
+    public PersistentAccessGrant()
+    {
+        this(Paths.get(System.getProperty("pf.server.default.dir", "server/default"),
+                       "data", "access-grants", "access-grants.log"));
+    }
+
+    PersistentAccessGrant(Path logPath)
+    {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        try {
+            grantLog = new AccessGrantLog(logPath);
+
+            long start = System.currentTimeMillis();
+            long records = grantLog.replay(this::replayRecord);
+            log.info("Loaded " + accessGrants.size() + " access grants from " + records + " records in " +
+                     (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (IOException | UncheckedIOException e) {
+            throw new AccessGrantManagementException("Unable to load access grants from " + logPath, e);
+        }
+
+        logExecutor.scheduleWithFixedDelay(this::force, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        compactIfNeeded();
+    }
+
+    @Override
+    public void saveGrant(AccessGrant accessGrant, AccessGrantAttributesHolder accessGrantAttributesHolder) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(accessGrant.getGuid())) {
+            accessGrants.saveGrant(accessGrant, accessGrantAttributesHolder);
+            appendSaveRecord(accessGrant.getGuid());
+        }
+    }
+
+    @Override
+    public void deleteExpiredGrants()
+    {
+        // Expired grants are not logged as revoked; replay drops them again, and compaction leaves them out
+        accessGrants.deleteExpiredGrants();
+        compactIfNeeded();
+    }
+
+    @Override
+    public Collection<AccessGrant> getByClientId(String clientId) throws AccessGrantManagementException
+    {
+        return accessGrants.getByClientId(clientId);
+    }
+
+    @Override
+    public AccessGrant getByGuid(String guid) throws AccessGrantManagementException
+    {
+        return accessGrants.getByGuid(guid);
+    }
+
+    @Override
+    public AccessGrant getByRefreshToken(String refreshToken) throws AccessGrantManagementException
+    {
+        return accessGrants.getByRefreshToken(refreshToken);
+    }
+
+    @Override
+    public Collection<AccessGrant> getByUserKey(String userKey) throws AccessGrantManagementException
+    {
+        return accessGrants.getByUserKey(userKey);
+    }
+
+    @Override
+    public AccessGrant getByAccessGrantCriteria(AccessGrantCriteria accessGrantCriteria)
+            throws AccessGrantManagementException
+    {
+        return accessGrants.getByAccessGrantCriteria(accessGrantCriteria);
+    }
+
+    @Override
+    public AccessGrant getByUserKeyScopeClientIdGrantTypeContext(String userKey, Scope scope, String clientId, String grantType, String context) throws AccessGrantManagementException
+    {
+        return accessGrants.getByUserKeyScopeClientIdGrantTypeContext(userKey, scope, clientId, grantType, context);
+    }
+
+    @Override
+    public Collection<AccessGrant> getByUserKeyClientIdGrantType(String userKey, String clientId, String grantType) throws AccessGrantManagementException
+    {
+        return accessGrants.getByUserKeyClientIdGrantType(userKey, clientId, grantType);
+    }
+
+    @Override
+    public AccessGrantAttributesHolder getGrantAttributes(String accessGrantGuid) throws AccessGrantManagementException
+    {
+        return accessGrants.getGrantAttributes(accessGrantGuid);
+    }
+
+    @Override
+    public boolean isDataSourceInUse(String datasourceId)
+    {
+        return false;
+    }
+
+    @Override
+    public void revokeGrant(String guid) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(guid)) {
+            if (accessGrants.getByGuid(guid) != null) {
+                accessGrants.revokeGrant(guid);
+                appendRevokeRecord(guid);
+            }
+        }
+    }
+
+    @Override
+    public void revokeGrant(String userKey, String guid) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(guid)) {
+            AccessGrant accessGrant = accessGrants.getByGuid(guid);
+
+            if (accessGrant != null && accessGrant.getUniqueUserIdentifer().equals(userKey)) {
+                accessGrants.revokeGrant(guid);
+                appendRevokeRecord(guid);
+            }
+        }
+    }
+
+    @Override
+    public void updateGrantAttributes(String accessGrantGuid, AccessGrantAttributesHolder attributes) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(accessGrantGuid)) {
+            if (accessGrants.getByGuid(accessGrantGuid) != null) {
+                accessGrants.updateGrantAttributes(accessGrantGuid, attributes);
+                appendAttributesRecord(accessGrantGuid, attributes);
+            }
+        }
+    }
+
+    @Override
+    public void updateRefreshToken(AccessGrant accessGrant) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(accessGrant.getGuid())) {
+            accessGrants.updateRefreshToken(accessGrant);
+            appendSaveRecord(accessGrant.getGuid());
+        }
+    }
+
+    @Override
+    public void updateExpiry(AccessGrant accessGrant) throws AccessGrantManagementException
+    {
+        synchronized (lockFor(accessGrant.getGuid())) {
+            accessGrants.updateExpiry(accessGrant);
+            appendSaveRecord(accessGrant.getGuid());
+        }
+    }
+
+    @Override
+    public int revokeGrantsForUser(String userKey) throws AccessGrantManagementException
+    {
+        return accessGrants.revokeGrantsForUser(userKey, this::appendBulkRevokeRecord);
+    }
+
+    @Override
+    public int revokeGrantsForClient(String clientId) throws AccessGrantManagementException
+    {
+        return accessGrants.revokeGrantsForClient(clientId, this::appendBulkRevokeRecord);
+    }
+
+    @Override
+    public int revokeGrants(Predicate<AccessGrant> predicate) throws AccessGrantManagementException
+    {
+        return accessGrants.revokeGrants(predicate, this::appendBulkRevokeRecord);
+    }
+
+    /**
+     * Logs the current state of the grant with the given guid, if it is still stored.
+     */
+    private void appendSaveRecord(String guid)
+    {
+        SampleAccessGrant.AccessGrantWithAttributes stored = accessGrants.getAccessGrantWithAttributes(guid);
+
+        if (stored != null) {
+            warnIfObjectValues(stored.attributes);
+            append(saveRecord(stored.accessGrant, stored.attributes));
+        }
+    }
+
+    /**
+     * Logs a grant removed by a bulk revocation. The grant is removed before its lock is taken here, so it is only
+     * logged as revoked if no write has saved it again in between.
+     */
+    private void appendBulkRevokeRecord(String guid)
+    {
+        synchronized (lockFor(guid)) {
+            if (accessGrants.getByGuid(guid) == null) {
+                appendRevokeRecord(guid);
+            }
+        }
+    }
+
+    private void appendRevokeRecord(String guid)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(REVOKE_RECORD);
+            AccessGrantCodec.writeString(out, guid);
+        }
+        catch (IOException e) {
+            throw new AccessGrantManagementException("Unable to encode access grant revocation", e);
+        }
+
+        append(bytes.toByteArray());
+    }
+
+    private void appendAttributesRecord(String guid, AccessGrantAttributesHolder attributes)
+    {
+        warnIfObjectValues(attributes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ATTRIBUTES_RECORD);
+            AccessGrantCodec.writeString(out, guid);
+            AccessGrantCodec.writeAttributes(out, attributes);
+        }
+        catch (IOException e) {
+            throw new AccessGrantManagementException("Unable to encode access grant attributes", e);
+        }
+
+        append(bytes.toByteArray());
+    }
+
+    private void warnIfObjectValues(AccessGrantAttributesHolder attributes)
+    {
+        if (attributes != null && !objectValuesWarned.get() && AccessGrantCodec.hasObjectValues(attributes) &&
+            objectValuesWarned.compareAndSet(false, true)) {
+            log.warn("Access grant attributes with object values are logged with their string values only, so the " +
+                     "object values will not survive a restart");
+        }
+    }
+
+    private static byte[] saveRecord(AccessGrant accessGrant, AccessGrantAttributesHolder attributes)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(SAVE_RECORD);
+            AccessGrantCodec.writeAccessGrant(out, accessGrant);
+            AccessGrantCodec.writeAttributes(out, attributes);
+        }
+        catch (IOException e) {
+            throw new AccessGrantManagementException("Unable to encode access grant " + accessGrant.getGuid(), e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void append(byte[] record)
+    {
+        try {
+            grantLog.append(record);
+        }
+        catch (IOException e) {
+            throw new AccessGrantManagementException("Unable to write to " + grantLog.getPath(), e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Applies a record read from the log to the in-memory grants.
+     */
+    private void replayRecord(byte[] record)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte type = in.readByte();
+
+            switch (type) {
+                case SAVE_RECORD:
+                    AccessGrant accessGrant = AccessGrantCodec.readAccessGrant(in);
+                    accessGrants.saveGrant(accessGrant, AccessGrantCodec.readAttributes(in));
+                    break;
+                case REVOKE_RECORD:
+                    accessGrants.revokeGrant(AccessGrantCodec.readString(in));
+                    break;
+                case ATTRIBUTES_RECORD:
+                    String guid = AccessGrantCodec.readString(in);
+                    accessGrants.updateGrantAttributes(guid, AccessGrantCodec.readAttributes(in));
+                    break;
+                default:
+                    throw new IOException("Unknown access grant record type " + type);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts a background compaction once superseded records make up most of the log.
+     */
+    private void compactIfNeeded()
+    {
+        long records = grantLog.getRecordCount();
+
+        if (records < MIN_RECORDS_FOR_COMPACTION || records <= 2L * accessGrants.size() ||
+            !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        logExecutor.execute(this::compact);
+    }
+
+    /**
+     * Rewrites the log with one record per live grant, plus the records appended while the grants were written.
+     */
+    private void compact()
+    {
+        long records = grantLog.getRecordCount();
+        long start = System.currentTimeMillis();
+
+        try {
+            grantLog.rewrite(writer -> accessGrants.forEachGrant(
+                (accessGrant, attributes) -> writer.accept(saveRecord(accessGrant, attributes))));
+
+            log.info("Compacted " + grantLog.getPath() + " from " + records + " to " + grantLog.getRecordCount() +
+                     " records in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (IOException | RuntimeException e) {
+            // The previous log is still in place, so the grants remain durable; compaction is retried on a later write
+            log.error("Unable to compact " + grantLog.getPath(), e);
+        }
+        finally {
+            compacting.set(false);
+        }
+    }
+
+    private void force()
+    {
+        try {
+            grantLog.force();
+        }
+        catch (IOException | RuntimeException e) {
+            log.error("Unable to force " + grantLog.getPath() + " to disk", e);
+        }
+    }
+
+    private Object lockFor(String guid)
+    {
+        // Spread the hash bits so that guids differing only in their high bits still land on different stripes
+        int hash = guid.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
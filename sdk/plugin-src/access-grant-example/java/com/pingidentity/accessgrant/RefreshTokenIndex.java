@@ -0,0 +1,296 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.accessgrant;
+
+import java.security.SecureRandom;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An index of hashed refresh token values to the guid of the grant that owns them. The token values are not kept;
+ * each is reduced to a 64-bit SipHash-2-4 digest under a random key chosen when the index is created, and the digests
+ * are held in open-addressing tables of primitive longs. A lookup hashes the value and probes the table without
+ * allocating.
+ *
+ * Because the digest is keyed, nobody outside the process can choose token values that collide. Callers must still
+ * compare the hashed token value stored with the grant before trusting a match, which also covers the remote chance
+ * of two live tokens sharing a digest; in that case the later one wins the slot.
+ *
+ * The table is split into segments, each guarded by a {@link StampedLock}. Lookups first probe without locking and
+ * only take the read lock if a write to the segment raced with the probe.
+ */
+class RefreshTokenIndex
+{
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The digest marking an empty slot. A value that digests to it is stored under {@link #ZERO_DIGEST} instead.
+     */
+    private static final long EMPTY = 0;
+    private static final long ZERO_DIGEST = 1;
+
+    private final long k0;
+    private final long k1;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    RefreshTokenIndex()
+    {
+        SecureRandom random = new SecureRandom();
+        k0 = random.nextLong();
+        k1 = random.nextLong();
+
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the guid of the grant indexed under the hashed refresh token value, or null.
+     */
+    String get(String hashedRefreshTokenValue)
+    {
+        long digest = digest(hashedRefreshTokenValue);
+        return segmentFor(digest).get(digest);
+    }
+
+    void put(String hashedRefreshTokenValue, String guid)
+    {
+        long digest = digest(hashedRefreshTokenValue);
+        segmentFor(digest).put(digest, guid);
+    }
+
+    /**
+     * Removes the hashed refresh token value, but only if it is still indexed to the given guid.
+     */
+    void remove(String hashedRefreshTokenValue, String guid)
+    {
+        long digest = digest(hashedRefreshTokenValue);
+        segmentFor(digest).remove(digest, guid);
+    }
+
+    private Segment segmentFor(long digest)
+    {
+        // The low bits pick the slot within the segment, so pick the segment with the high bits
+        return segments[(int) (digest >>> 58) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Computes SipHash-2-4 over the UTF-16 code units of the value, in little-endian order.
+     */
+    private long digest(String value)
+    {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+
+        int length = value.length();
+        int end = length - (length & 3);
+        for (int i = 0; i < end; i += 4) {
+            long m = value.charAt(i) | (long) value.charAt(i + 1) << 16 |
+                     (long) value.charAt(i + 2) << 32 | (long) value.charAt(i + 3) << 48;
+            v3 ^= m;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        long m = (long) (length * 2) << 56;
+        for (int i = end, shift = 0; i < length; i++, shift += 16) {
+            m |= (long) value.charAt(i) << shift;
+        }
+        v3 ^= m;
+        for (int round = 0; round < 2; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= m;
+
+        v2 ^= 0xff;
+        for (int round = 0; round < 4; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+
+        long digest = v0 ^ v1 ^ v2 ^ v3;
+        return digest != EMPTY ? digest : ZERO_DIGEST;
+    }
+
+    /**
+     * The digests and the guids stored alongside them, in parallel arrays of the same power of two length.
+     */
+    private static class Table
+    {
+        final long[] digests;
+        final String[] guids;
+
+        Table(int capacity)
+        {
+            digests = new long[capacity];
+            guids = new String[capacity];
+        }
+    }
+
+    /**
+     * A linear probing table. Removal shifts later entries of the probe sequence back, so the table never holds
+     * tombstones.
+     */
+    private static class Segment
+    {
+        private final StampedLock lock = new StampedLock();
+        private Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+
+        String get(long digest)
+        {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                String guid = find(table, digest);
+                if (lock.validate(stamp)) {
+                    return guid;
+                }
+            }
+
+            stamp = lock.readLock();
+            try {
+                return find(table, digest);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void put(long digest, String guid)
+        {
+            long stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 4 > table.digests.length * 3) {
+                    resize();
+                }
+
+                long[] digests = table.digests;
+                int mask = digests.length - 1;
+                int slot = (int) digest & mask;
+                while (digests[slot] != EMPTY && digests[slot] != digest) {
+                    slot = (slot + 1) & mask;
+                }
+
+                if (digests[slot] == EMPTY) {
+                    size++;
+                }
+                table.guids[slot] = guid;
+                digests[slot] = digest;
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long digest, String guid)
+        {
+            long stamp = lock.writeLock();
+            try {
+                long[] digests = table.digests;
+                String[] guids = table.guids;
+                int mask = digests.length - 1;
+                int slot = (int) digest & mask;
+                while (digests[slot] != digest) {
+                    if (digests[slot] == EMPTY) {
+                        return;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+
+                if (!guid.equals(guids[slot])) {
+                    return;
+                }
+
+                // Close the gap by moving back any later entry whose home slot is at or before the gap
+                int gap = slot;
+                int next = (gap + 1) & mask;
+                while (digests[next] != EMPTY) {
+                    int home = (int) digests[next] & mask;
+                    if (((next - home) & mask) >= ((next - gap) & mask)) {
+                        digests[gap] = digests[next];
+                        guids[gap] = guids[next];
+                        gap = next;
+                    }
+                    next = (next + 1) & mask;
+                }
+                digests[gap] = EMPTY;
+                guids[gap] = null;
+                size--;
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Probes for the digest. This may run without the lock against a table being changed, so it gives up after
+         * visiting every slot and the caller only trusts the result once the lock stamp validates.
+         */
+        private static String find(Table table, long digest)
+        {
+            long[] digests = table.digests;
+            int mask = digests.length - 1;
+            int slot = (int) digest & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long candidate = digests[slot];
+                if (candidate == digest) {
+                    return table.guids[slot];
+                }
+                if (candidate == EMPTY) {
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private void resize()
+        {
+            long[] oldDigests = table.digests;
+            String[] oldGuids = table.guids;
+            Table resized = new Table(oldDigests.length * 2);
+            long[] newDigests = resized.digests;
+            String[] newGuids = resized.guids;
+            int mask = newDigests.length - 1;
+
+            for (int i = 0; i < oldDigests.length; i++) {
+                if (oldDigests[i] != EMPTY) {
+                    int slot = (int) oldDigests[i] & mask;
+                    while (newDigests[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newDigests[slot] = oldDigests[i];
+                    newGuids[slot] = oldGuids[i];
+                }
+            }
+
+            table = resized;
+        }
+    }
+}
@@ -18,8 +18,20 @@ package com.pingidentity.accessgrant;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import com.pingidentity.sdk.accessgrant.AccessGrantCriteria;
 import org.sourceid.oauth20.token.TokenUtil;
@@ -32,8 +44,29 @@ import com.pingidentity.sdk.oauth20.Scope;
 
 /**
  * This class provides a sample implementation for access grants. It uses a
- * HashMap to store the access grants with the key being the access grant guid. 
- * All modifications, such as updates, revocations, etc. are all done on this HashMap.
+ * ConcurrentHashMap to store the access grants with the key being the access grant guid. 
+ * All modifications, such as updates, revocations, etc. are all done on this map.
+ * Secondary indexes on the refresh token, user key and client id are kept alongside
+ * the map so that lookups do not have to scan every stored grant.
+ *
+ * Token endpoint threads read and write grants concurrently. Reads never lock. Writes
+ * to a grant take one of a fixed set of striped locks chosen by the grant guid, so the
+ * map and its indexes change together while writes to unrelated grants proceed in
+ * parallel.
+ *
+ * Grants with an expiry are also kept in an expiry-ordered index. Every save evicts a
+ * small batch of already expired grants from the head of that index, so expired grants
+ * do not pile up between the daily {@link #deleteExpiredGrants()} runs, and that run
+ * only visits grants that have actually expired.
+ *
+ * The grants themselves are encoded into an {@link OffHeapGrantStore} outside the Java
+ * heap, and the map only holds a handle to each encoded grant. This keeps millions of
+ * grants from adding to garbage collection pauses. A grant is decoded each time it is
+ * read, and the checks made during eviction, revocation and criteria lookups decode only
+ * the fields they compare.
+ *
+ * The {@link BulkAccessGrantRevocation} operations revoke all grants of a user or client
+ * by walking that user's or client's index entry once.
  * 
  * To use this implementation, modify ./server/default/conf/service-points.conf and change:
  * 
@@ -47,27 +80,105 @@ import com.pingidentity.sdk.oauth20.Scope;
  *   
  *   Follow the instructions in the SDK Developer's Guide for building and deploying.
  *
- *  Production use of this sample is not recommended, since this HashMap
+ *  Production use of this sample is not recommended, since this map
  *  based implementation stores grants in memory local to a given
  *  PingFederate server. Thus, this implementation can not support HA
  *  or DR architectures.
  */
 
-public class SampleAccessGrant implements AccessGrantManager
+public class SampleAccessGrant implements AccessGrantManager, BulkAccessGrantRevocation
 {
     /**
-     * A class to hold the access grant itself, along with the optional access
-     * grant attributes.
+     * The number of striped write locks. A power of two so that a stripe can be picked with a mask.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The maximum number of expired grants evicted by each call to {@link #saveGrant}.
+     */
+    private static final int EVICTION_BATCH_SIZE = 16;
+
+    /**
+     * A class to hold a decoded access grant, along with the optional access
+     * grant attributes that were stored with it.
      */
     static class AccessGrantWithAttributes {
-        AccessGrant accessGrant;
-        AccessGrantAttributesHolder attributes;
+        final AccessGrant accessGrant;
+        final AccessGrantAttributesHolder attributes;
+
+        AccessGrantWithAttributes(AccessGrant accessGrant, AccessGrantAttributesHolder attributes) {
+            this.accessGrant = accessGrant;
+            this.attributes = attributes;
+        }
     }
     
     /**
-     * The HashMap which stores all access grants using the guid as the key.
+     * The off-heap store holding the encoded access grants and their attributes.
+     */
+    private final OffHeapGrantStore store = new OffHeapGrantStore();
+
+    /**
+     * The map of access grant guids to the handles of their records in the store. A handle is freed by whoever
+     * removes or replaces it in the map, always while holding the lock for the guid.
      */
-    private HashMap<String, AccessGrantWithAttributes> accessGrants = new HashMap<>();
+    private final Map<String, Long> accessGrants = new ConcurrentHashMap<>();
+
+    /**
+     * The striped locks that serialize writes to the same grant guid.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * An entry of the expiry index, ordered by expiry time and then by guid.
+     */
+    static class ExpiryKey implements Comparable<ExpiryKey> {
+        final long expires;
+        final String guid;
+
+        ExpiryKey(long expires, String guid) {
+            this.expires = expires;
+            this.guid = guid;
+        }
+
+        @Override
+        public int compareTo(ExpiryKey other) {
+            int result = Long.compare(expires, other.expires);
+            return result != 0 ? result : guid.compareTo(other.guid);
+        }
+    }
+
+    /**
+     * Index of the grants that have an expiry time, soonest expiry first.
+     */
+    private final ConcurrentSkipListSet<ExpiryKey> expiryIndex = new ConcurrentSkipListSet<>();
+
+    /**
+     * Index of keyed digests of the hashed refresh token values to the guid of the grant that owns them.
+     */
+    private final RefreshTokenIndex refreshTokenIndex = new RefreshTokenIndex();
+
+    /**
+     * Index of unique user identifiers to the guids of the grants issued to that user.
+     */
+    private final Map<String, Set<String>> userKeyIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Index of client ids to the guids of the grants issued to that client.
+     */
+    private final Map<String, Set<String>> clientIdIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Index of the user key, client id and grant type combination to the matching grant guids. This also narrows
+     * the criteria lookups down to the few grants that differ only by scope or contextual qualifier.
+     */
+    private final Map<String, Set<String>> userKeyClientIdGrantTypeIndex = new ConcurrentHashMap<>();
+
+    public SampleAccessGrant()
+    {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
     
     
     /**
@@ -83,17 +194,25 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void saveGrant(AccessGrant accessGrant, AccessGrantAttributesHolder accessGrantAttributesHolder) throws AccessGrantManagementException
     {
-        AccessGrantWithAttributes accessGrantWithAttributes = new AccessGrantWithAttributes();
-        accessGrantWithAttributes.accessGrant = accessGrant;
-        accessGrantWithAttributes.attributes = accessGrantAttributesHolder;
+        long handle = store.store(accessGrant, accessGrantAttributesHolder);
         
-        accessGrants.put(accessGrant.getGuid(), accessGrantWithAttributes);
+        synchronized (lockFor(accessGrant.getGuid())) {
+            Long previous = accessGrants.put(accessGrant.getGuid(), handle);
+            if (previous != null) {
+                removeFromIndexes(store.readAccessGrant(previous));
+                store.free(previous);
+            }
+            addToIndexes(accessGrant);
+        }
+
+        evictExpiredGrants(EVICTION_BATCH_SIZE);
     }
 
 
     /**
      * PingFederate periodically calls this method (once per day by default) to clear out expired access grants.
-     * When this method is invoked, it cycles through all access grants and delete any that are expired.
+     * When this method is invoked, it walks the head of the expiry index and deletes every grant that is expired,
+     * without visiting any grant that is still valid.
      *
      * @throws AccessGrantManagementException
      *             A general exception for any unexpected runtime errors that might occur during an access grant operation.
@@ -101,17 +220,32 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void deleteExpiredGrants()
     {
-        List<String> removeGuids = new ArrayList<>();
-        
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getExpires() < System.currentTimeMillis()) {
-                removeGuids.add(accessGrantWithAttributes.accessGrant.getGuid());
+        evictExpiredGrants(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Deletes up to the given number of expired grants, soonest expiry first.
+     *
+     * @param maxGrants
+     *            the maximum number of grants to delete.
+     * @return the number of grants deleted.
+     */
+    int evictExpiredGrants(int maxGrants)
+    {
+        // The head set holds every key that expired strictly before now, because "" sorts before any guid
+        NavigableSet<ExpiryKey> expired = expiryIndex.headSet(new ExpiryKey(System.currentTimeMillis(), ""), false);
+        int evicted = 0;
+        ExpiryKey expiryKey;
+
+        while (evicted < maxGrants && (expiryKey = expired.pollFirst()) != null) {
+            // The grant may have been given a new expiry after the key was polled, in which case it stays
+            long expires = expiryKey.expires;
+            if (removeGrantIf(expiryKey.guid, handle -> Objects.equals(store.readExpires(handle), expires))) {
+                evicted++;
             }
         }
-        
-        for (String guid : removeGuids) {
-            accessGrants.remove(guid);
-        }
+
+        return evicted;
     }
 
     
@@ -127,15 +261,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public Collection<AccessGrant> getByClientId(String clientId) throws AccessGrantManagementException
     {
-        List<AccessGrant> accessGrantsForReturn = new ArrayList<>();
-        
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getClientId().equals(clientId)) {
-                accessGrantsForReturn.add(accessGrantWithAttributes.accessGrant);
-            }
-        }
-        
-        return accessGrantsForReturn;
+        return getIndexedGrants(clientIdIndex, clientId);
     }
 
     
@@ -151,13 +277,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public AccessGrant getByGuid(String guid) throws AccessGrantManagementException
     {
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getGuid().equals(guid)) {
-                return accessGrantWithAttributes.accessGrant;
-            }
-        }
-        
-        return null;
+        return readStored(guid, store::readAccessGrant);
     }
     
 
@@ -173,10 +293,14 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public AccessGrant getByRefreshToken(String refreshToken) throws AccessGrantManagementException
     {
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getHashedRefreshTokenValue() != null &&
-                accessGrantWithAttributes.accessGrant.getHashedRefreshTokenValue().equals(TokenUtil.digestToken(refreshToken))) {
-                return accessGrantWithAttributes.accessGrant;
+        String hashedRefreshToken = TokenUtil.digestToken(refreshToken);
+        String guid = refreshTokenIndex.get(hashedRefreshToken);
+        
+        if (guid != null) {
+            // The index only holds digests, so confirm the match against the hashed value stored with the grant
+            AccessGrant accessGrant = getByGuid(guid);
+            if (accessGrant != null && constantTimeEquals(hashedRefreshToken, accessGrant.getHashedRefreshTokenValue())) {
+                return accessGrant;
             }
         }
         
@@ -196,15 +320,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public Collection<AccessGrant> getByUserKey(String userKey) throws AccessGrantManagementException
     {
-        List<AccessGrant> accessGrantsForReturn = new ArrayList<>();
-        
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getUniqueUserIdentifer().equals(userKey)) {
-                accessGrantsForReturn.add(accessGrantWithAttributes.accessGrant);
-            }
-        }
-        
-        return accessGrantsForReturn;
+        return getIndexedGrants(userKeyIndex, userKey);
     }
 
     /**
@@ -220,15 +336,21 @@ public class SampleAccessGrant implements AccessGrantManager
     public AccessGrant getByAccessGrantCriteria(AccessGrantCriteria accessGrantCriteria)
             throws AccessGrantManagementException
     {
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getUniqueUserIdentifer().equals(accessGrantCriteria.getUserKey()) &&
-                accessGrantWithAttributes.accessGrant.getScope().getScopeStr().equals(accessGrantCriteria.getScope().getScopeStr()) &&
-                accessGrantWithAttributes.accessGrant.getClientId().equals(accessGrantCriteria.getClientId()) &&
-                accessGrantWithAttributes.accessGrant.getGrantType().equals(accessGrantCriteria.getGrantType()) &&
-                accessGrantWithAttributes.accessGrant.getContextualQualifier().equals(accessGrantCriteria.getContextQualifier()) &&
-                accessGrantWithAttributes.accessGrant.getAuthorizationDetails().toJson().equals(accessGrantCriteria.getAuthorizationDetails().toJson()))
-            {
-                return accessGrantWithAttributes.accessGrant;
+        Set<String> candidates = getIndexedGuids(userKeyClientIdGrantTypeIndex,
+                                                 getUserKeyClientIdGrantTypeKey(accessGrantCriteria.getUserKey(),
+                                                                                accessGrantCriteria.getClientId(),
+                                                                                accessGrantCriteria.getGrantType()));
+        for (String guid : candidates) {
+            AccessGrant accessGrant = readStored(guid, handle -> {
+                if (!matchesScopeAndContext(handle, accessGrantCriteria.getScope(), accessGrantCriteria.getContextQualifier())) {
+                    return null;
+                }
+                AccessGrant candidate = store.readAccessGrant(handle);
+                return candidate.getAuthorizationDetails().toJson().equals(accessGrantCriteria.getAuthorizationDetails().toJson()) ?
+                       candidate : null;
+            });
+            if (accessGrant != null) {
+                return accessGrant;
             }
         }
 
@@ -255,14 +377,11 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public AccessGrant getByUserKeyScopeClientIdGrantTypeContext(String userKey, Scope scope, String clientId, String grantType, String context) throws AccessGrantManagementException
     {
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values()) {
-            if (accessGrantWithAttributes.accessGrant.getUniqueUserIdentifer().equals(userKey) &&
-                accessGrantWithAttributes.accessGrant.getScope().getScopeStr().equals(scope.getScopeStr()) &&    
-                accessGrantWithAttributes.accessGrant.getClientId().equals(clientId) &&    
-                accessGrantWithAttributes.accessGrant.getGrantType().equals(grantType) &&    
-                accessGrantWithAttributes.accessGrant.getContextualQualifier().equals(context)) 
-            {
-                return accessGrantWithAttributes.accessGrant;
+        for (String guid : getIndexedGuids(userKeyClientIdGrantTypeIndex, getUserKeyClientIdGrantTypeKey(userKey, clientId, grantType))) {
+            AccessGrant accessGrant = readStored(guid, handle ->
+                matchesScopeAndContext(handle, scope, context) ? store.readAccessGrant(handle) : null);
+            if (accessGrant != null) {
+                return accessGrant;
             }
         }
         
@@ -282,7 +401,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public AccessGrantAttributesHolder getGrantAttributes(String accessGrantGuid) throws AccessGrantManagementException
     {
-        return accessGrants.get(accessGrantGuid).attributes;
+        return readStored(accessGrantGuid, store::readAttributes);
     }
 
     
@@ -314,7 +433,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void revokeGrant(String guid) throws AccessGrantManagementException
     {
-        accessGrants.remove(guid);
+        removeGrant(guid);
     }
 
     
@@ -331,11 +450,7 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void revokeGrant(String userKey, String guid) throws AccessGrantManagementException
     {
-        AccessGrantWithAttributes accessGrant = accessGrants.get(guid);
-        
-        if (accessGrant != null && accessGrant.accessGrant.getUniqueUserIdentifer().equals(userKey)) {
-            accessGrants.remove(guid);
-        }
+        removeGrantIf(guid, handle -> store.readUserKey(handle).equals(userKey));
     }
 
     
@@ -352,11 +467,15 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void updateGrantAttributes(String accessGrantGuid, AccessGrantAttributesHolder attributes) throws AccessGrantManagementException
     {
-        AccessGrantWithAttributes accessGrantWithAttributes = accessGrants.get(accessGrantGuid);
+        // The attributes do not take part in any index, so only the stored record is replaced
+        synchronized (lockFor(accessGrantGuid)) {
+            Long existing = accessGrants.get(accessGrantGuid);
+            if (existing == null) {
+                return;
+            }
 
-        if (accessGrantWithAttributes != null) {
-            accessGrantWithAttributes.attributes = attributes;
-            accessGrants.put(accessGrantGuid, accessGrantWithAttributes);
+            accessGrants.put(accessGrantGuid, store.store(store.readAccessGrant(existing), attributes));
+            store.free(existing);
         }
     }
 
@@ -375,28 +494,8 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void updateRefreshToken(AccessGrant accessGrant) throws AccessGrantManagementException
     {
-        AccessGrantWithAttributes existingAccessGrant = accessGrants.get(accessGrant.getGuid());
-
-        if (existingAccessGrant != null) {
-            AccessGrant newAccessGrant = new AccessGrant(
-                accessGrant.getHashedRefreshTokenValue(),
-                existingAccessGrant.accessGrant.getGuid(),
-                existingAccessGrant.accessGrant.getUniqueUserIdentifer(),
-                existingAccessGrant.accessGrant.getGrantType(),
-                existingAccessGrant.accessGrant.getScope(),
-                existingAccessGrant.accessGrant.getClientId(),
-                existingAccessGrant.accessGrant.getIssued(),
-                System.currentTimeMillis(),
-                existingAccessGrant.accessGrant.getExpires(),
-                existingAccessGrant.accessGrant.getContextualQualifier());
-            newAccessGrant.setAuthorizationDetails(existingAccessGrant.accessGrant.getAuthorizationDetails());
-
-            AccessGrantWithAttributes accessGrantWithAttributes = new AccessGrantWithAttributes();
-            accessGrantWithAttributes.accessGrant = newAccessGrant;
-            accessGrantWithAttributes.attributes = existingAccessGrant.attributes;
-            
-            accessGrants.put(existingAccessGrant.accessGrant.getGuid(), accessGrantWithAttributes);
-        }
+        replaceAccessGrant(accessGrant.getGuid(),
+            existing -> copyAccessGrant(existing, accessGrant.getHashedRefreshTokenValue(), existing.getExpires()));
     }
 
     /**
@@ -415,28 +514,8 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public void updateExpiry(AccessGrant accessGrant) throws AccessGrantManagementException
     {
-        AccessGrantWithAttributes existingAccessGrant = accessGrants.get(accessGrant.getGuid());
-
-        if (existingAccessGrant != null) {
-            AccessGrant newAccessGrant = new AccessGrant(
-                    existingAccessGrant.accessGrant.getHashedRefreshTokenValue(),
-                    existingAccessGrant.accessGrant.getGuid(),
-                    existingAccessGrant.accessGrant.getUniqueUserIdentifer(),
-                    existingAccessGrant.accessGrant.getGrantType(),
-                    existingAccessGrant.accessGrant.getScope(),
-                    existingAccessGrant.accessGrant.getClientId(),
-                    existingAccessGrant.accessGrant.getIssued(),
-                    System.currentTimeMillis(),
-                    accessGrant.getExpires(),
-                    existingAccessGrant.accessGrant.getContextualQualifier());
-            newAccessGrant.setAuthorizationDetails(existingAccessGrant.accessGrant.getAuthorizationDetails());
-
-            AccessGrantWithAttributes accessGrantWithAttributes = new AccessGrantWithAttributes();
-            accessGrantWithAttributes.accessGrant = newAccessGrant;
-            accessGrantWithAttributes.attributes = existingAccessGrant.attributes;
-
-            accessGrants.put(existingAccessGrant.accessGrant.getGuid(), accessGrantWithAttributes);
-        }
+        replaceAccessGrant(accessGrant.getGuid(),
+            existing -> copyAccessGrant(existing, existing.getHashedRefreshTokenValue(), accessGrant.getExpires()));
     }
 
     /**
@@ -456,18 +535,370 @@ public class SampleAccessGrant implements AccessGrantManager
     @Override
     public Collection<AccessGrant> getByUserKeyClientIdGrantType(String userKey, String clientId, String grantType) throws AccessGrantManagementException
     {
-        List<AccessGrant> accessGrantsForReturn = new ArrayList<>();
+        return getIndexedGrants(userKeyClientIdGrantTypeIndex, getUserKeyClientIdGrantTypeKey(userKey, clientId, grantType));
+    }
+
+    @Override
+    public int revokeGrantsForUser(String userKey) throws AccessGrantManagementException
+    {
+        return revokeGrantsForUser(userKey, guid -> {});
+    }
+
+    @Override
+    public int revokeGrantsForClient(String clientId) throws AccessGrantManagementException
+    {
+        return revokeGrantsForClient(clientId, guid -> {});
+    }
+
+    @Override
+    public int revokeGrants(Predicate<AccessGrant> predicate) throws AccessGrantManagementException
+    {
+        return revokeGrants(predicate, guid -> {});
+    }
+
+    /**
+     * Revokes every access grant issued to the given user, passing the guid of each revoked grant to the consumer.
+     */
+    int revokeGrantsForUser(String userKey, Consumer<String> revoked)
+    {
+        return revokeIndexedGrants(userKeyIndex, userKey, handle -> userKey.equals(store.readUserKey(handle)), revoked);
+    }
+
+    /**
+     * Revokes every access grant issued to the given client, passing the guid of each revoked grant to the consumer.
+     */
+    int revokeGrantsForClient(String clientId, Consumer<String> revoked)
+    {
+        return revokeIndexedGrants(clientIdIndex, clientId, handle -> clientId.equals(store.readClientId(handle)), revoked);
+    }
+
+    /**
+     * Revokes every access grant accepted by the predicate, passing the guid of each revoked grant to the consumer.
+     */
+    int revokeGrants(Predicate<AccessGrant> predicate, Consumer<String> revoked)
+    {
+        int count = 0;
+
+        for (String guid : accessGrants.keySet()) {
+            if (removeGrantIf(guid, handle -> predicate.test(store.readAccessGrant(handle)))) {
+                revoked.accept(guid);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the stored access grant together with its attributes, or null if there is no grant with the guid.
+     */
+    AccessGrantWithAttributes getAccessGrantWithAttributes(String guid)
+    {
+        return readStored(guid, handle -> new AccessGrantWithAttributes(store.readAccessGrant(handle),
+                                                                        store.readAttributes(handle)));
+    }
 
-        for (AccessGrantWithAttributes accessGrantWithAttributes : accessGrants.values())
-        {
-            if (accessGrantWithAttributes.accessGrant.getUniqueUserIdentifer().equals(userKey) &&
-                accessGrantWithAttributes.accessGrant.getClientId().equals(clientId) &&
-                accessGrantWithAttributes.accessGrant.getGrantType().equals(grantType))
-            {
-                accessGrantsForReturn.add(accessGrantWithAttributes.accessGrant);
+    /**
+     * Passes every stored access grant and its attributes to the given consumer.
+     */
+    void forEachGrant(BiConsumer<AccessGrant, AccessGrantAttributesHolder> consumer)
+    {
+        for (String guid : accessGrants.keySet()) {
+            AccessGrantWithAttributes accessGrantWithAttributes = getAccessGrantWithAttributes(guid);
+            if (accessGrantWithAttributes != null) {
+                consumer.accept(accessGrantWithAttributes.accessGrant, accessGrantWithAttributes.attributes);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of stored access grants.
+     */
+    int size()
+    {
+        return accessGrants.size();
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held by the off-heap store.
+     */
+    long getOffHeapBytes()
+    {
+        return store.getOffHeapBytes();
+    }
+
+    /**
+     * Applies the reader to the stored record of the grant with the given guid, or returns null if there is no such
+     * grant. Reads take no lock, so if the record is replaced or removed part way through, the read starts over
+     * with whatever the map holds by then.
+     */
+    private <T> T readStored(String guid, LongFunction<T> reader)
+    {
+        while (true) {
+            Long handle = accessGrants.get(guid);
+            if (handle == null) {
+                return null;
+            }
+
+            try {
+                return reader.apply(handle);
+            }
+            catch (OffHeapGrantStore.StaleRecordException e) {
+                // The record was freed while being read; retry against the current handle
+            }
+        }
+    }
+
+    /**
+     * Checks the scope and contextual qualifier of the stored record without decoding the whole grant.
+     */
+    private boolean matchesScopeAndContext(long handle, Scope scope, String context)
+    {
+        return scope.getScopeStr().equals(store.readScope(handle)) &&
+               Objects.equals(store.readContextualQualifier(handle), context);
+    }
+
+    /**
+     * Replaces the stored access grant with the one produced by the given update function, keeping its attributes.
+     */
+    private void replaceAccessGrant(String guid, UnaryOperator<AccessGrant> update)
+    {
+        synchronized (lockFor(guid)) {
+            Long existing = accessGrants.get(guid);
+            if (existing == null) {
+                return;
+            }
+
+            AccessGrant existingAccessGrant = store.readAccessGrant(existing);
+            AccessGrant replacement = update.apply(existingAccessGrant);
+            accessGrants.put(guid, store.store(replacement, store.readAttributes(existing)));
+            store.free(existing);
+
+            removeRefreshTokenIndex(existingAccessGrant);
+            removeExpiryIndex(existingAccessGrant);
+            addRefreshTokenIndex(replacement);
+            addExpiryIndex(replacement);
+        }
+    }
+
+    /**
+     * Creates a copy of the access grant with the given refresh token and expiry, stamped as updated now.
+     */
+    private static AccessGrant copyAccessGrant(AccessGrant existing, String hashedRefreshTokenValue, Long expires)
+    {
+        AccessGrant newAccessGrant = new AccessGrant(
+            hashedRefreshTokenValue,
+            existing.getGuid(),
+            existing.getUniqueUserIdentifer(),
+            existing.getGrantType(),
+            existing.getScope(),
+            existing.getClientId(),
+            existing.getIssued(),
+            System.currentTimeMillis(),
+            expires,
+            existing.getContextualQualifier());
+        newAccessGrant.setAuthorizationDetails(existing.getAuthorizationDetails());
+
+        return newAccessGrant;
+    }
+
+    /**
+     * Revokes the grants listed under the given index key that still pass the check once their lock is held, since a
+     * grant may have been saved again under another user or client after the index was read.
+     */
+    private int revokeIndexedGrants(Map<String, Set<String>> index, String key, LongPredicate check, Consumer<String> revoked)
+    {
+        int count = 0;
+
+        // Copy the guids, since removing each grant also removes it from the set being walked
+        for (String guid : new ArrayList<>(getIndexedGuids(index, key))) {
+            if (removeGrantIf(guid, check)) {
+                revoked.accept(guid);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes the access grant with the given guid from the map and from every secondary index.
+     *
+     * @return true if a grant was removed.
+     */
+    private boolean removeGrant(String guid)
+    {
+        return removeGrantIf(guid, handle -> true);
+    }
+
+    /**
+     * Removes the access grant with the given guid if its stored record passes the check, which runs under the lock
+     * for the guid.
+     *
+     * @return true if a grant was removed.
+     */
+    private boolean removeGrantIf(String guid, LongPredicate check)
+    {
+        synchronized (lockFor(guid)) {
+            Long handle = accessGrants.get(guid);
+            if (handle == null || !check.test(handle)) {
+                return false;
+            }
+
+            accessGrants.remove(guid);
+            removeFromIndexes(store.readAccessGrant(handle));
+            store.free(handle);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the striped lock guarding writes to the given grant guid.
+     */
+    private Object lockFor(String guid)
+    {
+        // Spread the hash bits so that guids differing only in their high bits still land on different stripes
+        int hash = guid.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Adds the access grant guid to every secondary index.
+     */
+    private void addToIndexes(AccessGrant accessGrant)
+    {
+        String guid = accessGrant.getGuid();
+
+        addRefreshTokenIndex(accessGrant);
+        addExpiryIndex(accessGrant);
+        addIndexEntry(userKeyIndex, accessGrant.getUniqueUserIdentifer(), guid);
+        addIndexEntry(clientIdIndex, accessGrant.getClientId(), guid);
+        addIndexEntry(userKeyClientIdGrantTypeIndex, getUserKeyClientIdGrantTypeKey(accessGrant), guid);
+    }
+
+    /**
+     * Removes the access grant guid from every secondary index.
+     */
+    private void removeFromIndexes(AccessGrant accessGrant)
+    {
+        String guid = accessGrant.getGuid();
+
+        removeRefreshTokenIndex(accessGrant);
+        removeExpiryIndex(accessGrant);
+        removeIndexEntry(userKeyIndex, accessGrant.getUniqueUserIdentifer(), guid);
+        removeIndexEntry(clientIdIndex, accessGrant.getClientId(), guid);
+        removeIndexEntry(userKeyClientIdGrantTypeIndex, getUserKeyClientIdGrantTypeKey(accessGrant), guid);
+    }
+
+    private void addRefreshTokenIndex(AccessGrant accessGrant)
+    {
+        if (accessGrant.getHashedRefreshTokenValue() != null) {
+            refreshTokenIndex.put(accessGrant.getHashedRefreshTokenValue(), accessGrant.getGuid());
+        }
+    }
+
+    private void removeRefreshTokenIndex(AccessGrant accessGrant)
+    {
+        if (accessGrant.getHashedRefreshTokenValue() != null) {
+            refreshTokenIndex.remove(accessGrant.getHashedRefreshTokenValue(), accessGrant.getGuid());
+        }
+    }
+
+    private void addExpiryIndex(AccessGrant accessGrant)
+    {
+        if (accessGrant.getExpires() != null) {
+            expiryIndex.add(new ExpiryKey(accessGrant.getExpires(), accessGrant.getGuid()));
+        }
+    }
+
+    private void removeExpiryIndex(AccessGrant accessGrant)
+    {
+        if (accessGrant.getExpires() != null) {
+            expiryIndex.remove(new ExpiryKey(accessGrant.getExpires(), accessGrant.getGuid()));
+        }
+    }
+
+    private static void addIndexEntry(Map<String, Set<String>> index, String key, String guid)
+    {
+        if (key == null) {
+            return;
+        }
+
+        index.compute(key, (k, guids) -> {
+            Set<String> result = guids != null ? guids : ConcurrentHashMap.newKeySet();
+            result.add(guid);
+            return result;
+        });
+    }
+
+    private static void removeIndexEntry(Map<String, Set<String>> index, String key, String guid)
+    {
+        if (key == null) {
+            return;
+        }
+
+        // Drop the key once its last guid is gone so that the index does not grow with departed users and clients
+        index.computeIfPresent(key, (k, guids) -> {
+            guids.remove(guid);
+            return guids.isEmpty() ? null : guids;
+        });
+    }
+
+    /**
+     * Resolves the guids stored under the given index key into their access grants.
+     */
+    private Collection<AccessGrant> getIndexedGrants(Map<String, Set<String>> index, String key)
+    {
+        Set<String> guids = getIndexedGuids(index, key);
+        List<AccessGrant> accessGrantsForReturn = new ArrayList<>(guids.size());
+
+        for (String guid : guids) {
+            AccessGrant accessGrant = getByGuid(guid);
+            if (accessGrant != null) {
+                accessGrantsForReturn.add(accessGrant);
             }
         }
 
         return accessGrantsForReturn;
     }
+
+    /**
+     * Compares two strings in time that depends only on their lengths, so that the comparison does not reveal how
+     * much of a guessed token value matched.
+     */
+    private static boolean constantTimeEquals(String a, String b)
+    {
+        if (a == null || b == null || a.length() != b.length()) {
+            return false;
+        }
+
+        int difference = 0;
+        for (int i = 0; i < a.length(); i++) {
+            difference |= a.charAt(i) ^ b.charAt(i);
+        }
+        return difference == 0;
+    }
+
+    private static Set<String> getIndexedGuids(Map<String, Set<String>> index, String key)
+    {
+        Set<String> guids = key != null ? index.get(key) : null;
+
+        return guids != null ? guids : Collections.emptySet();
+    }
+
+    private static String getUserKeyClientIdGrantTypeKey(AccessGrant accessGrant)
+    {
+        return getUserKeyClientIdGrantTypeKey(accessGrant.getUniqueUserIdentifer(), accessGrant.getClientId(),
+                                              accessGrant.getGrantType());
+    }
+
+    private static String getUserKeyClientIdGrantTypeKey(String userKey, String clientId, String grantType)
+    {
+        if (userKey == null || clientId == null || grantType == null) {
+            return null;
+        }
+
+        // A NUL separator cannot appear in any of the components, so distinct combinations never collide
+        return userKey + '\u0000' + clientId + '\u0000' + grantType;
+    }
 }
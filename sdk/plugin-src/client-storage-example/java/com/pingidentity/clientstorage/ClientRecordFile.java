@@ -0,0 +1,217 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.clientstorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A file of records, each framed by its payload length and a CRC32 of the payload. It is used both for the
+ * append-only logs of client changes and for snapshots of every client. A record torn by a crash is detected when the
+ * file is read back and cut off, so appends continue after the last intact record.
+ *
+ * Appends from concurrent threads are serialized, so each record is written whole. Appended records reach the
+ * operating system at once but are only on disk once {@link #force()} is called.
+ */
+class ClientRecordFile
+{
+    private static final Log log = LogFactory.getLog(ClientRecordFile.class);
+
+    /**
+     * The size of the frame header: the payload length followed by the payload CRC32.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private long recordCount;
+
+    /**
+     * Opens the file for appending, creating it if needed.
+     */
+    ClientRecordFile(Path path, long recordCount) throws IOException
+    {
+        this.path = path;
+        this.recordCount = recordCount;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Appends a record with the given payload to the end of the file.
+     */
+    synchronized void append(byte[] payload) throws IOException
+    {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt(checksum(payload));
+        frame.put(payload);
+        frame.flip();
+
+        while (frame.hasRemaining())
+        {
+            channel.write(frame);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Returns the number of records in the file.
+     */
+    synchronized long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Forces the records appended so far to disk. Appends carry on while the file is forced. Forcing a file that has
+     * been closed does nothing; it is forced before it is closed.
+     */
+    void force() throws IOException
+    {
+        try
+        {
+            channel.force(false);
+        }
+        catch (ClosedChannelException e)
+        {
+            // Closed by the start of a new generation, which forced it first
+        }
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Passes the payload of every intact record of the file to the consumer, in order. If the file ends with a torn
+     * or corrupt record, the file is truncated to the last intact record.
+     *
+     * @return the number of records read, or 0 if the file does not exist.
+     */
+    static long read(Path path, Consumer<byte[]> consumer) throws IOException
+    {
+        if (!Files.exists(path))
+        {
+            return 0;
+        }
+
+        long records = 0;
+        long validLength = 0;
+        long size = Files.size(path);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16)))
+        {
+            while (true)
+            {
+                int length;
+                int checksum;
+                byte[] payload;
+                try
+                {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || validLength + HEADER_SIZE + length > size)
+                    {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                if (checksum(payload) != checksum)
+                {
+                    break;
+                }
+
+                consumer.accept(payload);
+                validLength += HEADER_SIZE + payload.length;
+                records++;
+            }
+        }
+
+        if (validLength < size)
+        {
+            log.warn("Truncating " + (size - validLength) + " bytes of incomplete records from the end of " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+            {
+                channel.truncate(validLength);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Writes the given records to a new file, replacing any file at the path. The records are written to a temporary
+     * file that is synced and then atomically moved into place, so the file at the path is always complete.
+     */
+    static void write(Path path, Iterable<byte[]> payloads) throws IOException
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            for (byte[] payload : payloads)
+            {
+                out.writeInt(payload.length);
+                out.writeInt(checksum(payload));
+                out.write(payload);
+            }
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int checksum(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
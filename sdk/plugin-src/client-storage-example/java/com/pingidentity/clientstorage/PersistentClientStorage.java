@@ -0,0 +1,640 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.clientstorage;
+
+import com.google.common.collect.Iterables;
+import com.pingidentity.sdk.SearchCriteria;
+import com.pingidentity.sdk.oauth20.ClientData;
+import com.pingidentity.sdk.oauth20.ClientStorageManagementException;
+import com.pingidentity.sdk.oauth20.ClientStorageManagerBase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class provides a sample implementation for OAuth client storage that survives a restart of the PingFederate
+ * server. Clients are held, searched and looked up in memory exactly as in {@link SampleClientStorage}, and every
+ * change is also appended to a local log file.
+ *
+ * The store is made of generations. Generation N consists of a snapshot of every client as of the moment the
+ * generation started, clients-N.snapshot, and a log of the changes made since, clients-N.log. Once the log holds more
+ * records than there are clients, a new generation is started: writes move on to a new log straight away, and a
+ * background thread writes the snapshot for the new generation and then deletes the older files. On startup the
+ * latest complete snapshot is loaded and only the logs from its generation onwards are replayed.
+ *
+ * Writes to the same client are serialized by a striped lock chosen by the client ID, so the log records of a client
+ * are in the same order as its changes, while writes to different clients proceed in parallel. Records of different
+ * clients may reach the log in any order, as replaying them in any order gives the same clients. Writes still share
+ * the log file itself, whose appends are serialized, and they wait while a new generation is started.
+ *
+ * The files are kept in ./server/default/data/client-storage. Every change is written to the operating system before
+ * the call returns, so clients survive the PingFederate process stopping, but the log is only forced to disk once a
+ * second, and when a new generation retires it. A power failure or operating system crash can lose the changes of the
+ * last second.
+ *
+ * To use this implementation, modify the file ./server/default/conf/service-points.conf as follows:
+ *
+ * Two service points "client.manager" and "client.storage.manager" to become:
+ *
+ *        client.storage.manager=com.pingidentity.clientstorage.PersistentClientStorage
+ *
+ *        client.manager=org.sourceid.oauth20.domain.ClientManagerGenericImpl
+ *
+ * Follow the instructions in the SDK Developer's Guide for building and deploying.
+ *
+ * As with {@link SampleClientStorage}, the clients are local to a given PingFederate server, so this implementation
+ * can not support HA or DR architectures.
+ */
+public class PersistentClientStorage extends ClientStorageManagerBase
+{
+    private static final Log log = LogFactory.getLog(PersistentClientStorage.class);
+
+    // Record types written to the log
+    private static final byte PUT_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+
+    /**
+     * A new generation is not started until the current log holds at least this many records.
+     */
+    private static final long MIN_RECORDS_FOR_COMPACTION = 10000;
+
+    /**
+     * How often appended records are forced to disk.
+     */
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("clients-(\\d+)\\.(snapshot|log)");
+
+    /**
+     * The in-memory clients and indexes, rebuilt from the files on startup.
+     */
+    private final SampleClientStorage clients = new SampleClientStorage();
+
+    private final Path directory;
+
+    /**
+     * The number of striped write locks. A power of two so that a stripe can be picked with a mask.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The striped locks that a write holds while it changes a client, so that the log records of a client are in the
+     * order of its changes. A change is checked against the in-memory clients, logged, and only then applied, so a
+     * refused update is never written out and a change that could not be logged is never made. Readers never take
+     * them.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Writes hold the read lock while they log and apply a change. Starting a new generation takes the write lock, so
+     * its snapshot holds every change logged to the previous log and none of those logged to the next one.
+     */
+    private final ReadWriteLock generationLock = new ReentrantReadWriteLock();
+
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "client-storage-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Forces the current log to disk. Kept apart from the compaction thread so that writing a large snapshot does not
+     * hold up the forces.
+     */
+    private final ScheduledExecutorService forceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "client-storage-force");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The fields below are read under the read lock of the generation lock and changed under its write lock
+    private ClientRecordFile currentLog;
+    private long generation;
+
+    private final AtomicLong recordsSinceSnapshot = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    public PersistentClientStorage()
+    {
+        this(Paths.get(System.getProperty("pf.server.default.dir", "server/default"), "data", "client-storage"));
+    }
+
+    PersistentClientStorage(Path directory)
+    {
+        this.directory = directory;
+
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+
+        try
+        {
+            Files.createDirectories(directory);
+            load();
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            throw new IllegalStateException("Unable to load clients from " + directory, e);
+        }
+
+        forceExecutor.scheduleWithFixedDelay(this::force, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ClientData getClient(String clientId) throws ClientStorageManagementException
+    {
+        return clients.getClient(clientId);
+    }
+
+    @Override
+    public Collection<ClientData> getClients() throws ClientStorageManagementException
+    {
+        return clients.getClients();
+    }
+
+    /**
+     * Retrieves all client records in batches of the given size.
+     *
+     * @see SampleClientStorage#getClientBatches(int)
+     */
+    public Iterator<List<ClientData>> getClientBatches(int batchSize) throws ClientStorageManagementException
+    {
+        return clients.getClientBatches(batchSize);
+    }
+
+    @Override
+    public void addClient(ClientData client) throws ClientStorageManagementException
+    {
+        synchronized (lockFor(client.getId()))
+        {
+            generationLock.readLock().lock();
+            try
+            {
+                append(putRecord(client));
+                clients.addClient(client);
+            }
+            finally
+            {
+                generationLock.readLock().unlock();
+            }
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public void deleteClient(String clientId) throws ClientStorageManagementException
+    {
+        synchronized (lockFor(clientId))
+        {
+            if (clients.getClient(clientId) == null)
+            {
+                return;
+            }
+
+            generationLock.readLock().lock();
+            try
+            {
+                append(deleteRecord(clientId));
+                clients.deleteClient(clientId);
+            }
+            finally
+            {
+                generationLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void updateClient(ClientData client) throws ClientStorageManagementException
+    {
+        synchronized (lockFor(client.getId()))
+        {
+            generationLock.readLock().lock();
+            try
+            {
+                // A refused update is not logged; updateClient then reports the refusal
+                if (clients.canUpdate(client))
+                {
+                    append(putRecord(client));
+                }
+                clients.updateClient(client);
+            }
+            finally
+            {
+                generationLock.readLock().unlock();
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Replaces a client record only if the stored client is still the version the caller read.
+     *
+     * @see SampleClientStorage#replaceClient(ClientData, Date)
+     */
+    public boolean replaceClient(ClientData client, Date expectedLastModified) throws ClientStorageManagementException
+    {
+        synchronized (lockFor(client.getId()))
+        {
+            if (!clients.canReplace(client.getId(), expectedLastModified))
+            {
+                return false;
+            }
+
+            generationLock.readLock().lock();
+            try
+            {
+                append(putRecord(client));
+                clients.replaceClient(client, expectedLastModified);
+            }
+            finally
+            {
+                generationLock.readLock().unlock();
+            }
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public Collection<ClientData> search(SearchCriteria searchCriteria) throws ClientStorageManagementException
+    {
+        return clients.search(searchCriteria);
+    }
+
+    /**
+     * Loads the latest complete snapshot and replays the logs written since, then opens the latest log for appends.
+     */
+    private void load() throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long snapshotGeneration = -1;
+        List<Long> logGenerations = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                Matcher matcher = FILE_NAME_PATTERN.matcher(file.getFileName().toString());
+                if (matcher.matches())
+                {
+                    long fileGeneration = Long.parseLong(matcher.group(1));
+                    if (matcher.group(2).equals("snapshot"))
+                    {
+                        snapshotGeneration = Math.max(snapshotGeneration, fileGeneration);
+                    }
+                    else
+                    {
+                        logGenerations.add(fileGeneration);
+                    }
+                }
+            }
+        }
+
+        generation = Math.max(snapshotGeneration, 0);
+        long snapshotRecords = ClientRecordFile.read(snapshotPath(generation), this::applyRecord);
+
+        // Logs older than the snapshot are already part of it; they remain only if a crash interrupted their deletion
+        Collections.sort(logGenerations);
+        long currentLogRecords = 0;
+        for (long logGeneration : logGenerations)
+        {
+            if (logGeneration >= generation)
+            {
+                currentLogRecords = ClientRecordFile.read(logPath(logGeneration), this::applyRecord);
+                recordsSinceSnapshot.addAndGet(currentLogRecords);
+                generation = logGeneration;
+            }
+        }
+
+        currentLog = new ClientRecordFile(logPath(generation), currentLogRecords);
+        deleteFilesBefore(Math.max(snapshotGeneration, 0));
+
+        log.info("Loaded " + clients.size() + " clients from " + snapshotRecords + " snapshot records and " +
+                 recordsSinceSnapshot + " log records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Applies a record read from a snapshot or log to the in-memory clients.
+     */
+    private void applyRecord(byte[] record)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record)))
+        {
+            byte type = in.readByte();
+
+            switch (type)
+            {
+                case PUT_RECORD:
+                    ClientData client = new ClientData();
+                    client.setId(readString(in));
+                    client.setName(readString(in));
+                    client.setData(readString(in));
+                    client.setLastModified(readDate(in));
+                    client.setCreationTime(readDate(in));
+                    clients.addClient(client);
+                    break;
+                case DELETE_RECORD:
+                    clients.deleteClient(readString(in));
+                    break;
+                default:
+                    throw new IOException("Unknown client record type " + type);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        catch (ClientStorageManagementException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void append(byte[] record) throws ClientStorageManagementException
+    {
+        try
+        {
+            currentLog.append(record);
+            recordsSinceSnapshot.incrementAndGet();
+        }
+        catch (IOException e)
+        {
+            throw new ClientStorageManagementException("Unable to write to " + currentLog.getPath(), e);
+        }
+    }
+
+    /**
+     * Starts a new generation once the log since the last snapshot outgrows the clients themselves. Must be called
+     * without holding the generation lock.
+     */
+    private void compactIfNeeded()
+    {
+        long records = recordsSinceSnapshot.get();
+        if (records < MIN_RECORDS_FOR_COMPACTION || records <= clients.size() || !compacting.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        long nextGeneration;
+        Collection<ClientData> snapshot;
+        ClientRecordFile previousLog;
+
+        generationLock.writeLock().lock();
+        try
+        {
+            nextGeneration = generation + 1;
+            ClientRecordFile nextLog;
+            try
+            {
+                nextLog = new ClientRecordFile(logPath(nextGeneration), 0);
+            }
+            catch (IOException e)
+            {
+                log.error("Unable to start client storage generation " + nextGeneration, e);
+                compacting.set(false);
+                return;
+            }
+
+            // The clients are captured here, while no write can intervene, and written out in the background
+            snapshot = clients.getClientRecords();
+            previousLog = currentLog;
+            currentLog = nextLog;
+            generation = nextGeneration;
+            recordsSinceSnapshot.set(0);
+        }
+        finally
+        {
+            generationLock.writeLock().unlock();
+        }
+
+        // No write appends to the previous log any more; it is forced so that its last changes are on disk, as the
+        // periodic force only reaches the current log
+        try
+        {
+            previousLog.force();
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to force " + previousLog.getPath() + " to disk", e);
+        }
+
+        try
+        {
+            previousLog.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to close " + previousLog.getPath(), e);
+        }
+
+        compactionExecutor.execute(() -> writeSnapshot(nextGeneration, snapshot));
+    }
+
+    private void writeSnapshot(long snapshotGeneration, Collection<ClientData> snapshot)
+    {
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            ClientRecordFile.write(snapshotPath(snapshotGeneration), Iterables.transform(snapshot, PersistentClientStorage::putRecord));
+            deleteFilesBefore(snapshotGeneration);
+
+            log.info("Wrote a snapshot of " + snapshot.size() + " clients to " + snapshotPath(snapshotGeneration) +
+                     " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // The previous snapshot and logs are still in place, so the clients remain durable
+            log.error("Unable to write a snapshot to " + snapshotPath(snapshotGeneration), e);
+        }
+        finally
+        {
+            compacting.set(false);
+        }
+    }
+
+    private void force()
+    {
+        ClientRecordFile logFile;
+
+        generationLock.readLock().lock();
+        try
+        {
+            logFile = currentLog;
+        }
+        finally
+        {
+            generationLock.readLock().unlock();
+        }
+
+        try
+        {
+            logFile.force();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.error("Unable to force " + logFile.getPath() + " to disk", e);
+        }
+    }
+
+    /**
+     * Deletes the snapshots and logs of generations before the given one, and any unfinished temporary file.
+     */
+    private void deleteFilesBefore(long firstGeneration) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                String fileName = file.getFileName().toString();
+                Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
+                if ((matcher.matches() && Long.parseLong(matcher.group(1)) < firstGeneration) ||
+                        (fileName.startsWith("clients-") && fileName.endsWith(".tmp") && !compacting.get()))
+                {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Object lockFor(String clientId)
+    {
+        // Spread the hash bits so that IDs differing only in their high bits still land on different stripes
+        int hash = clientId.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    private Path snapshotPath(long snapshotGeneration)
+    {
+        return directory.resolve("clients-" + snapshotGeneration + ".snapshot");
+    }
+
+    private Path logPath(long logGeneration)
+    {
+        return directory.resolve("clients-" + logGeneration + ".log");
+    }
+
+    private static byte[] putRecord(ClientData client)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(PUT_RECORD);
+            writeString(out, client.getId());
+            writeString(out, client.getName());
+            writeString(out, client.getData());
+            writeDate(out, client.getLastModified());
+            writeDate(out, client.getCreationTime());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to encode client " + client.getId(), e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deleteRecord(String clientId)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(DELETE_RECORD);
+            writeString(out, clientId);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to encode the deletion of client " + clientId, e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its bytes, with a length of -1 standing for null.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDate(DataOutputStream out, Date value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeLong(value.getTime());
+        }
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+}
@@ -16,7 +16,10 @@
 
 package com.pingidentity.clientstorage;
 
+import com.google.common.collect.Collections2;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.pingidentity.sdk.SearchCriteria;
 import com.pingidentity.sdk.oauth20.ClientData;
 import com.pingidentity.sdk.oauth20.ClientStorageManagementException;
@@ -26,20 +29,44 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.ObjectUtils;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 /**
- * This class provides a sample implementation for OAuth client storage. It uses a HashMap to store client data with
- * the key being the client ID. All CRUD operations (create, read, update and delete) are performed on this HashMap.
- * A real implementation should persist data to an external store. Additional indexes and fields to filter the
- * the data would be required to optimize the search method invoked by the administrative console.
+ * This class provides a sample implementation for OAuth client storage. It uses a ConcurrentHashMap to store client
+ * data with the key being the client ID. All CRUD operations (create, read, update and delete) are performed on this
+ * map.
+ * A real implementation should persist data to an external store.
+ *
+ * To serve the search method invoked by the administrative console, the clients are also kept in one sorted list per
+ * sort field, and an index of the three-character substrings of every client ID and name narrows down the clients that
+ * can match a query. A page of results is then read straight from the sorted list instead of sorting every client.
+ *
+ * Clients can be changed concurrently without a global lock. Each change is applied to the map and to every index
+ * atomically with respect to other changes of the same client, and the indexes are concurrent structures that searches
+ * read without locking. The last modified date of a client serves as its version: updateClient refuses to replace a
+ * client with a version older than the stored one, so a stale write cannot undo a later change, while an update that
+ * keeps the date or lands in the same millisecond goes through as before. updateClient does not detect concurrent
+ * updates: two updates made to the same stored version both succeed, the later one winning. replaceClient, which only
+ * replaces the exact version the caller read, is the only protection against such lost updates. A search running
+ * alongside an update may briefly miss the client being updated.
  *
  * To use this implementation, modify the file ./server/default/conf/service-points.conf as follows:
  *
@@ -56,31 +83,305 @@ import java.util.List;
  */
 public class SampleClientStorage extends ClientStorageManagerBase
 {
+    /**
+     * The length of the substrings of client IDs and names held in the n-gram index.
+     */
+    private static final int NGRAM_LENGTH = 3;
+
+    /**
+     * A query whose n-gram candidates number at most one in this many clients sorts those candidates directly;
+     * otherwise it walks the sorted list and skips the clients that do not match. The walk visits fewer than this many
+     * clients per candidate, which is cheaper than sorting the candidates even for the last page.
+     */
+    private static final int CANDIDATE_SORT_DIVISOR = 8;
+
     /**
      * Inner class representing the data to be persisted per client entry. Note that client name and last modified
-     * fields only need to be persisted to implement an optimized search method.
+     * fields only need to be persisted to implement an optimized search method. The lower case ID and name are kept
+     * so that searching does not convert them again for every query.
      */
     private static class StoredClientData
     {
+        private final String clientId;
         private final String clientData;
         private final String clientName;
         private final Date clientLastModified;
         private final Date clientCreationTime;
+        private final String clientIdLowerCase;
+        private final String clientNameLowerCase;
         
-        public StoredClientData(String data, String name, Date lastModified, Date creationTime)
+        public StoredClientData(String id, String data, String name, Date lastModified, Date creationTime)
         {
+            clientId = id;
             clientData = data;
             clientName = name;
             clientLastModified = lastModified;
             clientCreationTime = creationTime;
+            clientIdLowerCase = id.toLowerCase();
+            clientNameLowerCase = name != null ? name.toLowerCase() : "";
+        }
+
+        private boolean matches(String lowerCaseQuery)
+        {
+            return clientIdLowerCase.contains(lowerCaseQuery) || clientNameLowerCase.contains(lowerCaseQuery);
         }
     }
-    
+
     /**
-     * The HashMap to simulate persisting client data to a store. Client ID is used as the index key. The schema in a
-     * real data store should be designed to also offer searching on client name and last modified fields.
+     * The stored clients kept in the order of a {@link ClientComparator}. The comparator breaks ties by client ID, so no
+     * two stored clients are considered the same entry.
+     * <p>
+     * The entries form a treap whose nodes are never changed once built: a change copies the path from the root to the
+     * changed node and swaps in the new root, so searches read a consistent snapshot without locking while clients are
+     * being changed. Every node records the size of its subtree, which finds the entry at any position, and so a page
+     * at any start index, in O(log n) steps.
+     * </p>
+     * <p>
+     * Adding or removing a client copies the O(log n) nodes on its path, expected, and retries if another change
+     * swapped the root first. Unlike inserting into a sorted array, nothing else has to move.
+     * </p>
      */
-    private HashMap<String, StoredClientData> storedClientDataHashMap = new HashMap<>();
+    private static class SortedIndex
+    {
+        private final ClientComparator comparator;
+        private final AtomicReference<Node> root = new AtomicReference<>();
+
+        private SortedIndex(String sortFieldName, SearchCriteria.Order order)
+        {
+            comparator = new ClientComparator(sortFieldName, order);
+        }
+
+        private void add(StoredClientData storedClientData)
+        {
+            int priority = ThreadLocalRandom.current().nextInt();
+            Node current;
+            do
+            {
+                current = root.get();
+            }
+            while (!root.compareAndSet(current, insert(current, storedClientData, priority)));
+        }
+
+        private void remove(StoredClientData storedClientData)
+        {
+            Node current;
+            Node updated;
+            do
+            {
+                current = root.get();
+                updated = delete(current, storedClientData);
+            }
+            while (updated != current && !root.compareAndSet(current, updated));
+        }
+
+        /**
+         * Returns the entries of the current snapshot from the given position on, in ascending or descending order.
+         */
+        private Iterator<StoredClientData> iterator(int startIndex, boolean descending)
+        {
+            return new NodeIterator(root.get(), startIndex, descending);
+        }
+
+        private Node insert(Node node, StoredClientData storedClientData, int priority)
+        {
+            if (node == null)
+            {
+                return new Node(storedClientData, priority, null, null);
+            }
+            if (priority > node.priority)
+            {
+                Node[] split = split(node, storedClientData);
+                return new Node(storedClientData, priority, split[0], split[1]);
+            }
+            if (comparator.compare(storedClientData, node.entry) < 0)
+            {
+                return new Node(node.entry, node.priority, insert(node.left, storedClientData, priority), node.right);
+            }
+            return new Node(node.entry, node.priority, node.left, insert(node.right, storedClientData, priority));
+        }
+
+        /**
+         * Splits the subtree into the entries before and after the given one, leaving out an entry equal to it.
+         */
+        private Node[] split(Node node, StoredClientData storedClientData)
+        {
+            if (node == null)
+            {
+                return new Node[2];
+            }
+
+            int result = comparator.compare(storedClientData, node.entry);
+            if (result == 0)
+            {
+                return new Node[] { node.left, node.right };
+            }
+            if (result < 0)
+            {
+                Node[] split = split(node.left, storedClientData);
+                return new Node[] { split[0], new Node(node.entry, node.priority, split[1], node.right) };
+            }
+            Node[] split = split(node.right, storedClientData);
+            return new Node[] { new Node(node.entry, node.priority, node.left, split[0]), split[1] };
+        }
+
+        /**
+         * Returns the subtree without the given entry, or the same subtree if it does not hold the entry.
+         */
+        private Node delete(Node node, StoredClientData storedClientData)
+        {
+            if (node == null)
+            {
+                return null;
+            }
+
+            int result = comparator.compare(storedClientData, node.entry);
+            if (result == 0)
+            {
+                return merge(node.left, node.right);
+            }
+            if (result < 0)
+            {
+                Node left = delete(node.left, storedClientData);
+                return left == node.left ? node : new Node(node.entry, node.priority, left, node.right);
+            }
+            Node right = delete(node.right, storedClientData);
+            return right == node.right ? node : new Node(node.entry, node.priority, node.left, right);
+        }
+
+        /**
+         * Joins two subtrees whose entries all sort before, respectively after, the other's.
+         */
+        private static Node merge(Node left, Node right)
+        {
+            if (left == null)
+            {
+                return right;
+            }
+            if (right == null)
+            {
+                return left;
+            }
+            if (left.priority > right.priority)
+            {
+                return new Node(left.entry, left.priority, left.left, merge(left.right, right));
+            }
+            return new Node(right.entry, right.priority, merge(left, right.left), right.right);
+        }
+    }
+
+    private static class Node
+    {
+        private final StoredClientData entry;
+        private final int priority;
+        private final Node left;
+        private final Node right;
+        private final int size;
+
+        private Node(StoredClientData entry, int priority, Node left, Node right)
+        {
+            this.entry = entry;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            size = 1 + sizeOf(left) + sizeOf(right);
+        }
+
+        private static int sizeOf(Node node)
+        {
+            return node != null ? node.size : 0;
+        }
+    }
+
+    /**
+     * Walks the entries of a treap in order from a given position, keeping the path of nodes still to visit.
+     */
+    private static class NodeIterator implements Iterator<StoredClientData>
+    {
+        private final Deque<Node> path = new ArrayDeque<>();
+        private final boolean descending;
+
+        private NodeIterator(Node root, int startIndex, boolean descending)
+        {
+            this.descending = descending;
+
+            // Descend to the entry at the start index, keeping the nodes that come after it on the way
+            Node node = root;
+            int remaining = startIndex;
+            while (node != null)
+            {
+                int beforeSize = Node.sizeOf(descending ? node.right : node.left);
+                if (remaining <= beforeSize)
+                {
+                    path.push(node);
+                    if (remaining == beforeSize)
+                    {
+                        break;
+                    }
+                    node = descending ? node.right : node.left;
+                }
+                else
+                {
+                    remaining -= beforeSize + 1;
+                    node = descending ? node.left : node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public StoredClientData next()
+        {
+            if (path.isEmpty())
+            {
+                throw new NoSuchElementException();
+            }
+
+            Node node = path.pop();
+            for (Node next = descending ? node.left : node.right; next != null; next = descending ? next.right : next.left)
+            {
+                path.push(next);
+            }
+            return node.entry;
+        }
+    }
+
+    /**
+     * The map to simulate persisting client data to a store. Client ID is used as the index key. The schema in a
+     * real data store should be designed to also offer searching on client name and last modified fields. The map is
+     * concurrent so that {@link #getClients()} can iterate it while clients are being changed.
+     */
+    private final Map<String, StoredClientData> storedClientDataMap = new ConcurrentHashMap<>();
+
+    /**
+     * The ascending sorted lists, keyed by sort field name. Descending searches read them back to front. The map itself
+     * is only filled in by the constructor.
+     */
+    private final Map<String, SortedIndex> sortedIndexes = new HashMap<>();
+
+    /**
+     * Sorting by descending creation date still orders clients created at the same time by ascending name, so it is
+     * not simply the ascending list reversed and gets its own list.
+     */
+    private final SortedIndex creationDateDescendingIndex = new SortedIndex(CREATION_DATE, SearchCriteria.Order.DESC);
+
+    /**
+     * Index of every substring of length {@link #NGRAM_LENGTH} of the lower case client IDs and names to the IDs of
+     * the clients containing it. Sets are created and dropped with the map's atomic compute methods.
+     */
+    private final Map<String, Set<String>> ngramIndex = new ConcurrentHashMap<>();
+
+    public SampleClientStorage()
+    {
+        for (String sortFieldName : new String[] { CLIENT_ID, CLIENT_NAME, LAST_MODIFIED_DATE, CREATION_DATE })
+        {
+            sortedIndexes.put(sortFieldName, new SortedIndex(sortFieldName, SearchCriteria.Order.ASC));
+        }
+    }
 
     /**
      * Retrieves a client record by client ID.
@@ -93,21 +394,15 @@ public class SampleClientStorage extends ClientStorageManagerBase
     @Override
     public ClientData getClient(String clientId) throws ClientStorageManagementException
     {
-        ClientData clientData = null;
-    
-        StoredClientData storedClientData = storedClientDataHashMap.get(clientId);
-    
-        if (storedClientData != null)
-        {
-            clientData = new ClientData();
-            clientData.setData(storedClientData.clientData);
-        }
-        
-        return clientData;
+        StoredClientData storedClientData = storedClientDataMap.get(clientId);
+
+        return storedClientData != null ? toClientData(storedClientData) : null;
     }
 
     /**
-     * Retrieves all client records.
+     * Retrieves all client records. The returned collection is a view of the stored clients that builds each record
+     * as it is iterated, so enumerating every client takes constant memory however many clients there are. The
+     * iteration reflects clients added, updated or deleted while it runs on a best effort basis.
      *
      * @return A collection of all client records.
      * @throws com.pingidentity.sdk.oauth20.ClientStorageManagementException
@@ -116,18 +411,21 @@ public class SampleClientStorage extends ClientStorageManagerBase
     @Override
     public Collection<ClientData> getClients() throws ClientStorageManagementException
     {
-        HashMap<String, ClientData> fullClientDataMap = new HashMap<>();
-    
-        for (Map.Entry<String, StoredClientData> entry : storedClientDataHashMap.entrySet())
-        {
-            StoredClientData storedClientData = entry.getValue();
-            ClientData clientData = new ClientData();
-            clientData.setData(storedClientData.clientData);
-            
-            fullClientDataMap.put(entry.getKey(), clientData);
-        }
-        
-        return fullClientDataMap.values();
+        return Collections2.transform(storedClientDataMap.values(), SampleClientStorage::toClientData);
+    }
+
+    /**
+     * Retrieves all client records in batches of the given size, for callers such as replication that send clients
+     * on in chunks. Only the current batch is held in memory.
+     *
+     * @param batchSize The maximum number of client records per batch.
+     * @return An iterator over the batches of client records.
+     * @throws com.pingidentity.sdk.oauth20.ClientStorageManagementException
+     *              Checked exception to indicate the retrieval of client records has failed.
+     */
+    public Iterator<List<ClientData>> getClientBatches(int batchSize) throws ClientStorageManagementException
+    {
+        return Iterators.partition(getClients().iterator(), batchSize);
     }
 
     /**
@@ -140,10 +438,7 @@ public class SampleClientStorage extends ClientStorageManagerBase
     @Override
     public void addClient(ClientData client) throws ClientStorageManagementException
     {
-        StoredClientData storedClientData = new StoredClientData(client.getData(), client.getName(),
-                                                                 client.getLastModified(), client.getCreationTime());
-        
-        storedClientDataHashMap.put(client.getId(), storedClientData);
+        storeClientIf(client, current -> true);
     }
 
     /**
@@ -156,24 +451,71 @@ public class SampleClientStorage extends ClientStorageManagerBase
     @Override
     public void deleteClient(String clientId) throws ClientStorageManagementException
     {
-        storedClientDataHashMap.remove(clientId);
+        storedClientDataMap.computeIfPresent(clientId, (id, removed) ->
+        {
+            removeFromIndexes(removed);
+            return null;
+        });
     }
 
     /**
-     * Updating a client record.
+     * Updating a client record. The update is refused if the given client was last modified before the stored one, as
+     * it would otherwise overwrite a newer version of the client with a stale one. Concurrent updates are not detected:
+     * two updates of the same version both succeed and the later one wins. {@link #replaceClient(ClientData, Date)} is
+     * the only way to avoid losing such an update.
      *
      * @param client
      *              The client object.
      * @throws com.pingidentity.sdk.oauth20.ClientStorageManagementException
-     *              Checked exception to indicate that the operation of updating a client record has failed.
+     *              Checked exception to indicate that the operation of updating a client record has failed, including
+     *              when a newer version of the client is stored.
      */
     @Override
     public void updateClient(ClientData client) throws ClientStorageManagementException
     {
-        StoredClientData storedClientData = new StoredClientData(client.getData(), client.getName(),
-                                                                 client.getLastModified(), client.getCreationTime());
-    
-        storedClientDataHashMap.put(client.getId(), storedClientData);
+        if (!storeClientIf(client, updatable(client)))
+        {
+            throw new ClientStorageManagementException("Client " + client.getId() + " was modified after " +
+                                                       client.getLastModified() + " by another update");
+        }
+    }
+
+    /**
+     * Replaces a client record only if the stored client is still the version the caller read, as identified by its
+     * last modified date. A caller that loses the race reads the client again and retries its change on top of the
+     * newer version.
+     *
+     * @param client
+     *              The client object, with the last modified date of the new version.
+     * @param expectedLastModified
+     *              The last modified date of the stored version the change was made to.
+     * @return true if the client was replaced, false if it does not exist or has been modified since.
+     * @throws com.pingidentity.sdk.oauth20.ClientStorageManagementException
+     *              Checked exception to indicate that the operation of updating a client record has failed.
+     */
+    public boolean replaceClient(ClientData client, Date expectedLastModified) throws ClientStorageManagementException
+    {
+        return storeClientIf(client, replaceable(expectedLastModified));
+    }
+
+    /**
+     * Returns whether {@link #updateClient(ClientData)} would store the given client rather than refuse it. Callers
+     * that log a change before making it serialize their changes to the client, so the answer still holds when they
+     * make it.
+     */
+    boolean canUpdate(ClientData client)
+    {
+        return updatable(client).test(storedClientDataMap.get(client.getId()));
+    }
+
+    /**
+     * Returns whether {@link #replaceClient(ClientData, Date)} would replace the client stored under the given ID.
+     *
+     * @see #canUpdate(ClientData)
+     */
+    boolean canReplace(String clientId, Date expectedLastModified)
+    {
+        return replaceable(expectedLastModified).test(storedClientDataMap.get(clientId));
     }
 
     /**
@@ -181,6 +523,15 @@ public class SampleClientStorage extends ClientStorageManagerBase
      * for optimized administrative console performance on large scale client stores. This method is not invoked at
      * runtime by engine nodes.
      *
+     * A search without a query starts at the requested position of the sorted list, whatever its depth. A search with
+     * a query has no such shortcut, as the position of the n-th match in the sorted list is only known by counting the
+     * matches before it. A query of at least {@value #NGRAM_LENGTH} characters first gathers its n-gram candidates, at
+     * a cost of about the number of candidates, and the page then costs about as much again: either the candidates
+     * are sorted or, when they make up more than one in {@value #CANDIDATE_SORT_DIVISOR} clients, the sorted list is
+     * walked from the start, skipping the matches before the page. A shorter query has no candidates, so every client
+     * on the walk is checked until the page is filled; a page deep into its matches, or a query that matches few
+     * clients, then costs a walk over up to every client.
+     *
      * @param searchCriteria
      * @return
      * @throws ClientStorageManagementException
@@ -190,57 +541,275 @@ public class SampleClientStorage extends ClientStorageManagerBase
             throws ClientStorageManagementException
 
     {
-        // Note: This search implementation is for illustrative purposes only - it is not optimized for performance.
-        // It could have been omitted to rely on the method provided by the ClientStorageManagerBase parent class,
-        // which would offer comparable performance. A real implementation should send queries with filtering and
-        // sorting options to the connected data store.
-        
-        Collection<ClientData> searchResults = new ArrayList<>();
-    
-        for (Map.Entry<String, StoredClientData> entry : storedClientDataHashMap.entrySet())
-        {
-            StoredClientData storedClientData = entry.getValue();
-            
-            String searchCriteriaString = searchCriteria.getQuery();
-            
-            if (StringUtils.isBlank(searchCriteria.getQuery()) ||
-                    entry.getKey().toLowerCase().contains(searchCriteriaString.toLowerCase()) ||
-                    storedClientData.clientName.toLowerCase().contains(searchCriteriaString.toLowerCase()))
+        List<SearchCriteria.OrderByItem> orderByList = searchCriteria.getOrderBy();
+        SearchCriteria.OrderByItem orderBy = orderByList.get(0);    //order by 1 field. possible to order by more if needed
+
+        SortedIndex sortedIndex = getSortedIndex(orderBy);
+        boolean reversed = orderBy.getOrder() == SearchCriteria.Order.DESC && sortedIndex != creationDateDescendingIndex;
+
+        int startIndex = searchCriteria.getStartIndex();
+        int itemsRequested = searchCriteria.getItemsRequested();
+        List<StoredClientData> page;
+
+        if (StringUtils.isBlank(searchCriteria.getQuery()))
+        {
+            page = Lists.newArrayList(Iterators.limit(sortedIndex.iterator(startIndex, reversed), itemsRequested));
+        }
+        else
+        {
+            String lowerCaseQuery = searchCriteria.getQuery().toLowerCase();
+            Set<String> candidates = getNgramCandidates(lowerCaseQuery);
+
+            if (candidates != null && candidates.size() <= storedClientDataMap.size() / CANDIDATE_SORT_DIVISOR)
+            {
+                // Few clients can match, so sorting just those is cheaper than walking the sorted list
+                List<StoredClientData> matches = new ArrayList<>(candidates.size());
+                for (String clientId : candidates)
+                {
+                    StoredClientData storedClientData = storedClientDataMap.get(clientId);
+                    if (storedClientData != null && storedClientData.matches(lowerCaseQuery))
+                    {
+                        matches.add(storedClientData);
+                    }
+                }
+                matches.sort(reversed ? sortedIndex.comparator.reversed() : sortedIndex.comparator);
+                int fromIndex = Math.min(startIndex, matches.size());
+                page = new ArrayList<>(matches.subList(fromIndex, fromIndex + Math.min(itemsRequested, matches.size() - fromIndex)));
+            }
+            else
             {
-                ClientData clientData = new ClientData();
-                clientData.setData(storedClientData.clientData);
-                
-                // Note: For convenience in this example we set the values in the ClientData structure for ID, name
-                // and last modified. Normally this would be part of the query sent to the connected data store.
-                clientData.setId(entry.getKey());
-                clientData.setName(storedClientData.clientName);
-                clientData.setLastModified(storedClientData.clientLastModified);
-                clientData.setCreationTime(storedClientData.clientCreationTime);
-                
-                searchResults.add(clientData);
+                // Walks from the start even for a deep page, as only the matches before the page tell where it begins
+                page = new ArrayList<>();
+                int skipped = 0;
+                for (Iterator<StoredClientData> ordered = sortedIndex.iterator(0, reversed); ordered.hasNext(); )
+                {
+                    StoredClientData storedClientData = ordered.next();
+                    if (page.size() >= itemsRequested)
+                    {
+                        break;
+                    }
+                    if ((candidates == null || candidates.contains(storedClientData.clientId)) &&
+                            storedClientData.matches(lowerCaseQuery))
+                    {
+                        if (skipped < startIndex)
+                        {
+                            skipped++;
+                        }
+                        else
+                        {
+                            page.add(storedClientData);
+                        }
+                    }
+                }
             }
         }
 
-        if (searchCriteria.getStartIndex() >= searchResults.size())
+        List<ClientData> searchResults = new ArrayList<>(page.size());
+
+        for (StoredClientData storedClientData : page)
         {
-            return Collections.emptyList();
+            searchResults.add(toClientRecord(storedClientData));
         }
 
-        List<SearchCriteria.OrderByItem> orderByList = searchCriteria.getOrderBy();
-        SearchCriteria.OrderByItem orderBy = orderByList.get(0);    //order by 1 field. possible to order by more if needed
+        return searchResults;
+    }
+
+    /**
+     * Returns every stored client as of this call, with the ID, name and time stamps filled in as well as the data.
+     * The clients are captured up front but each record is built as it is iterated, so the result can be written out
+     * later while clients keep changing.
+     */
+    Collection<ClientData> getClientRecords()
+    {
+        return Collections2.transform(new ArrayList<>(storedClientDataMap.values()), SampleClientStorage::toClientRecord);
+    }
+
+    /**
+     * Returns the number of stored clients.
+     */
+    int size()
+    {
+        return storedClientDataMap.size();
+    }
+
+    private static ClientData toClientData(StoredClientData storedClientData)
+    {
+        ClientData clientData = new ClientData();
+        clientData.setData(storedClientData.clientData);
+
+        return clientData;
+    }
+
+    /**
+     * Builds a ClientData with the ID, name and time stamps of the stored client as well as its data.
+     */
+    private static ClientData toClientRecord(StoredClientData storedClientData)
+    {
+        ClientData clientData = toClientData(storedClientData);
+
+        // Note: For convenience in this example we set the values in the ClientData structure for ID, name
+        // and last modified. Normally this would be part of the query sent to the connected data store.
+        clientData.setId(storedClientData.clientId);
+        clientData.setName(storedClientData.clientName);
+        clientData.setLastModified(storedClientData.clientLastModified);
+        clientData.setCreationTime(storedClientData.clientCreationTime);
+
+        return clientData;
+    }
+
+    /**
+     * Stores the client if the precondition accepts the client currently stored under its ID, or null if there is
+     * none, replacing that client in the map and in every index. The check and the change happen atomically with
+     * respect to other changes of the same client.
+     *
+     * @return whether the client was stored.
+     */
+    private boolean storeClientIf(ClientData client, Predicate<StoredClientData> precondition)
+    {
+        StoredClientData storedClientData = new StoredClientData(client.getId(), client.getData(), client.getName(),
+                                                                 client.getLastModified(), client.getCreationTime());
+
+        StoredClientData current = storedClientDataMap.compute(client.getId(), (clientId, previous) ->
+        {
+            if (!precondition.test(previous))
+            {
+                return previous;
+            }
+
+            if (previous != null)
+            {
+                removeFromIndexes(previous);
+            }
+            addToIndexes(storedClientData);
+            return storedClientData;
+        });
+
+        return current == storedClientData;
+    }
+
+    private static Predicate<StoredClientData> updatable(ClientData client)
+    {
+        return current -> current == null || !isOlder(client.getLastModified(), current.clientLastModified);
+    }
+
+    private static Predicate<StoredClientData> replaceable(Date expectedLastModified)
+    {
+        return current -> current != null && Objects.equals(current.clientLastModified, expectedLastModified);
+    }
+
+    /**
+     * Returns whether the given version is older than the stored one. Clients without a last modified date are never
+     * considered older, so they can be updated as before versioning.
+     */
+    private static boolean isOlder(Date lastModified, Date storedLastModified)
+    {
+        return lastModified != null && storedLastModified != null && lastModified.before(storedLastModified);
+    }
+
+    private void addToIndexes(StoredClientData storedClientData)
+    {
+        for (SortedIndex sortedIndex : sortedIndexes.values())
+        {
+            sortedIndex.add(storedClientData);
+        }
+        creationDateDescendingIndex.add(storedClientData);
+
+        for (String ngram : getNgrams(storedClientData))
+        {
+            ngramIndex.compute(ngram, (key, clientIds) ->
+            {
+                Set<String> updated = clientIds != null ? clientIds : ConcurrentHashMap.newKeySet();
+                updated.add(storedClientData.clientId);
+                return updated;
+            });
+        }
+    }
 
-        List<ClientData> resultsArray = new ArrayList<>(searchResults);
-        Collections.sort(resultsArray, new ClientComparator(orderBy.getSortFieldName(), orderBy.getOrder()));
+    private void removeFromIndexes(StoredClientData storedClientData)
+    {
+        for (SortedIndex sortedIndex : sortedIndexes.values())
+        {
+            sortedIndex.remove(storedClientData);
+        }
+        creationDateDescendingIndex.remove(storedClientData);
 
-        int fromIndex = searchCriteria.getStartIndex();
-        int toIndex = searchCriteria.getStartIndex() + searchCriteria.getItemsRequested() >= resultsArray.size()
-                ? resultsArray.size()
-                : searchCriteria.getStartIndex() + searchCriteria.getItemsRequested();
-        return resultsArray.subList(fromIndex, toIndex);
+        for (String ngram : getNgrams(storedClientData))
+        {
+            ngramIndex.computeIfPresent(ngram, (key, clientIds) ->
+            {
+                clientIds.remove(storedClientData.clientId);
+                return clientIds.isEmpty() ? null : clientIds;
+            });
+        }
     }
 
     /**
-     * Comparator class used for sorting {@link ClientData}.
+     * Returns the sorted list to read for the given order. An unknown sort field falls back to the client ID order.
+     */
+    private SortedIndex getSortedIndex(SearchCriteria.OrderByItem orderBy)
+    {
+        if (CREATION_DATE.equals(orderBy.getSortFieldName()) && orderBy.getOrder() == SearchCriteria.Order.DESC)
+        {
+            return creationDateDescendingIndex;
+        }
+
+        SortedIndex sortedIndex = sortedIndexes.get(orderBy.getSortFieldName());
+        return sortedIndex != null ? sortedIndex : sortedIndexes.get(CLIENT_ID);
+    }
+
+    /**
+     * Returns the IDs of the clients whose ID or name contains every n-gram of the query, which includes every client
+     * that matches it. Returns null if the query is too short to have n-grams.
+     */
+    private Set<String> getNgramCandidates(String lowerCaseQuery)
+    {
+        if (lowerCaseQuery.length() < NGRAM_LENGTH)
+        {
+            return null;
+        }
+
+        List<Set<String>> postings = new ArrayList<>();
+        for (String ngram : getNgrams(lowerCaseQuery))
+        {
+            Set<String> clientIds = ngramIndex.get(ngram);
+            if (clientIds == null)
+            {
+                return Collections.emptySet();
+            }
+            postings.add(clientIds);
+        }
+
+        // Intersect starting from the rarest n-gram, so the work is bounded by its clients
+        postings.sort(Comparator.comparingInt(Set::size));
+        Set<String> candidates = new HashSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !candidates.isEmpty(); i++)
+        {
+            candidates.retainAll(postings.get(i));
+        }
+
+        return candidates;
+    }
+
+    private static Set<String> getNgrams(StoredClientData storedClientData)
+    {
+        Set<String> ngrams = getNgrams(storedClientData.clientIdLowerCase);
+        ngrams.addAll(getNgrams(storedClientData.clientNameLowerCase));
+        return ngrams;
+    }
+
+    private static Set<String> getNgrams(String value)
+    {
+        Set<String> ngrams = new HashSet<>();
+        for (int i = 0; i + NGRAM_LENGTH <= value.length(); i++)
+        {
+            ngrams.add(value.substring(i, i + NGRAM_LENGTH));
+        }
+        return ngrams;
+    }
+
+    /**
+     * Comparator class used for sorting {@link StoredClientData}. Clients that compare equal on the sort field are
+     * ordered by client ID, so that no two stored clients compare equal.
      * <p>
      * Clients can be sorted by
      * <ul>
@@ -251,7 +820,7 @@ public class SampleClientStorage extends ClientStorageManagerBase
      *  </ul>
      *  </p>
      */
-    private static class ClientComparator implements Comparator<ClientData>, Serializable
+    private static class ClientComparator implements Comparator<StoredClientData>, Serializable
     {
         private final String sortFieldName;
         private final SearchCriteria.Order order;
@@ -263,25 +832,31 @@ public class SampleClientStorage extends ClientStorageManagerBase
         }
     
         @Override
-        public int compare(ClientData c1, ClientData c2)
+        public int compare(StoredClientData c1, StoredClientData c2)
+        {
+            int result = compareSortField(c1, c2);
+            return result != 0 ? result : c1.clientId.compareTo(c2.clientId);
+        }
+
+        private int compareSortField(StoredClientData c1, StoredClientData c2)
         {
             int reverse = order == SearchCriteria.Order.ASC ? 1 : -1;
             switch (sortFieldName)
             {
                 case CLIENT_ID:
-                    return c1.getId().compareToIgnoreCase(c2.getId()) * reverse;
+                    return c1.clientId.compareToIgnoreCase(c2.clientId) * reverse;
                 case CLIENT_NAME:
-                    return c1.getName().compareToIgnoreCase(c2.getName()) * reverse;
+                    return c1.clientNameLowerCase.compareTo(c2.clientNameLowerCase) * reverse;
                 case LAST_MODIFIED_DATE:
-                    return ObjectUtils.compare(c1.getLastModified(), c2.getLastModified()) * reverse;
+                    return ObjectUtils.compare(c1.clientLastModified, c2.clientLastModified) * reverse;
                 case CREATION_DATE:
                     return ComparisonChain.start()
-                              .compare(c1.getCreationTime(), c2.getCreationTime(), (t1, t2) -> ObjectUtils.compare(t1, t2) * reverse)
-                              .compare(c1.getName(), c2.getName(), String::compareToIgnoreCase)
+                              .compare(c1.clientCreationTime, c2.clientCreationTime, (t1, t2) -> ObjectUtils.compare(t1, t2) * reverse)
+                              .compare(c1.clientNameLowerCase, c2.clientNameLowerCase)
                               .result();
                 default:
                     return 0;
             }
         }
     }
-}
\ No newline at end of file
+}
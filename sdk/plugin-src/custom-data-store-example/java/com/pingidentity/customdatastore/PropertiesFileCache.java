@@ -0,0 +1,265 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.customdatastore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The parsed contents of the properties files of a directory, kept in memory until the files change.
+ *
+ * The directory is watched with a {@link WatchService}, and a file is dropped from the cache as soon as it is
+ * created, modified or deleted, so a lookup only reads a file the first time it is needed after it changed. A file
+ * that does not exist is cached as missing until it is created. At most a fixed number of files are cached, the least
+ * recently used giving way.
+ *
+ * If the directory cannot be watched, every lookup reads its file. The watching thread stops once the cache is no
+ * longer in use, so a data store that is configured again leaves no thread behind.
+ */
+class PropertiesFileCache
+{
+    private static final Log log = LogFactory.getLog(PropertiesFileCache.class);
+
+    private static final String EXTENSION = ".properties";
+
+    // How often the watching thread checks whether the cache is still in use
+    private static final long POLL_SECONDS = 60;
+
+    private final Path directory;
+    private final Cache<Path, Optional<Map<String, String>>> files;
+
+    // Counts the changes seen by the watching thread, so that a file read while it changed is not cached
+    private final AtomicLong changes = new AtomicLong();
+
+    private volatile boolean watching;
+
+    PropertiesFileCache(Path directory, int maxFiles)
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+        files = CacheBuilder.newBuilder().maximumSize(maxFiles).build();
+        watch();
+    }
+
+    /**
+     * Returns the properties of the file with the given name and the .properties extension, or null if there is no
+     * such file or it cannot be read. The map returned must not be changed.
+     */
+    Map<String, String> get(String name)
+    {
+        Path path;
+        try
+        {
+            path = directory.resolve(name + EXTENSION).normalize();
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+
+        // only the files right in the directory are watched
+        if (!watching || !directory.equals(path.getParent()))
+        {
+            return read(path).orElse(null);
+        }
+
+        Optional<Map<String, String>> properties = files.getIfPresent(path);
+        if (properties == null)
+        {
+            long changesBefore = changes.get();
+            properties = read(path);
+            files.put(path, properties);
+            if (changes.get() != changesBefore)
+            {
+                // a file changed while this one was read, so it may be out of date already
+                files.invalidate(path);
+            }
+        }
+        return properties.orElse(null);
+    }
+
+    private static Optional<Map<String, String>> read(Path path)
+    {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, Charset.defaultCharset()))
+        {
+            properties.load(reader);
+        }
+        catch (NoSuchFileException e)
+        {
+            return Optional.empty();
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to read properties file " + path + ": " + e);
+            return Optional.empty();
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (String name : properties.stringPropertyNames())
+        {
+            values.put(name, properties.getProperty(name));
+        }
+        return Optional.of(Collections.unmodifiableMap(values));
+    }
+
+    private void watch()
+    {
+        WatchService watchService;
+        try
+        {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                               StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.warn("Unable to watch " + directory + " for changes, properties files will be read on every lookup: "
+                     + e);
+            return;
+        }
+
+        watching = true;
+        Thread thread = new Thread(new Watcher(this, watchService), "properties-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Drops the files changed according to the events of a watch key, or every file if events were lost.
+     */
+    private void changed(WatchKey key)
+    {
+        changes.incrementAndGet();
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                files.invalidateAll();
+            }
+            else
+            {
+                files.invalidate(directory.resolve((Path) event.context()));
+            }
+        }
+    }
+
+    /**
+     * Stops caching, as changes to the directory can no longer be seen.
+     */
+    private void stopWatching()
+    {
+        watching = false;
+        changes.incrementAndGet();
+        files.invalidateAll();
+        log.warn("Stopped watching " + directory + " for changes, properties files will be read on every lookup");
+    }
+
+    /**
+     * Waits for changes to the directory on a thread of its own. It holds the cache only weakly, so that the cache can
+     * be garbage collected once it is no longer in use, and then closes the watch service and ends.
+     */
+    private static class Watcher implements Runnable
+    {
+        private final WeakReference<PropertiesFileCache> cacheReference;
+        private final WatchService watchService;
+
+        private Watcher(PropertiesFileCache cache, WatchService watchService)
+        {
+            this.cacheReference = new WeakReference<>(cache);
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run()
+        {
+            try (watchService)
+            {
+                while (process(watchService.poll(POLL_SECONDS, TimeUnit.SECONDS)))
+                {
+                    // keep watching
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                stop();
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to close watch service: " + e);
+            }
+        }
+
+        /**
+         * Passes the events of a watch key, if any, to the cache. Returns false once the cache is no longer in use or
+         * the directory can no longer be watched. The cache is only referenced while this runs, not while waiting for
+         * the next key.
+         */
+        private boolean process(WatchKey key)
+        {
+            PropertiesFileCache cache = cacheReference.get();
+            if (cache == null)
+            {
+                return false;
+            }
+
+            if (key != null)
+            {
+                cache.changed(key);
+                if (!key.reset())
+                {
+                    cache.stopWatching();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void stop()
+        {
+            PropertiesFileCache cache = cacheReference.get();
+            if (cache != null)
+            {
+                cache.stopWatching();
+            }
+        }
+    }
+}
@@ -17,14 +17,12 @@
 package com.pingidentity.customdatastore;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 
 import org.sourceid.saml20.adapter.conf.Configuration;
 import org.sourceid.saml20.adapter.conf.SimpleFieldList;
@@ -54,6 +52,9 @@ import com.pingidentity.sources.gui.FilterFieldsGuiDescriptor;
  * </p>
  * If a property does not exist, an empty string will be returned (for no particular reason). If the properties file
  * cannot be loaded, an empty map will be returned, as per the interface documentation.
+ *
+ * The properties files are parsed once and kept in memory, as described in {@link PropertiesFileCache}, until they are
+ * changed on disk, so retrieving the values of a user does not read the disk each time.
  */
 public class SamplePropertiesDataStore implements CustomDataSourceDriver
 {
@@ -74,9 +75,15 @@ public class SamplePropertiesDataStore implements CustomDataSourceDriver
         listOfFields.add("favoriteSong");
     }
 
+    // The most properties files kept in memory at once
+    private static final int MAX_CACHED_FILES = 10000;
+
     // Path to the directory containing all the properties files
     private String propertiesDirectory;
 
+    // The parsed properties files of the directory
+    private PropertiesFileCache propertiesFiles;
+
     public SamplePropertiesDataStore()
     {
         // create a FilterFieldsGuiDescriptor in order to filter values from our data store. The filter value can be a
@@ -134,6 +141,8 @@ public class SamplePropertiesDataStore implements CustomDataSourceDriver
     {
         // load the data store configuration settings from the Configuration object
         propertiesDirectory = configuration.getFieldValue(CONFIG_PROPS_PATH);
+        propertiesFiles = new PropertiesFileCache(Paths.get(propertiesDirectory != null ? propertiesDirectory : ""),
+                                                  MAX_CACHED_FILES);
     }
 
     /**
@@ -180,31 +189,28 @@ public class SamplePropertiesDataStore implements CustomDataSourceDriver
     {
         String propertiesName = filterConfiguration.getFieldValue(FILTER_USERNAME);
         Map<String, Object> results = new HashMap<String, Object>();
-        try
-        {
-            // load the properties file
-            Properties loadedProperties = new Properties();
-            loadedProperties.load(new FileReader(new File(propertiesDirectory, propertiesName + ".properties")));
 
-            // read the corresponding attributes from the properties file
-            for (String attributeName : attributeNamesToFill)
-            {
-                String value = loadedProperties.getProperty(attributeName);
-
-                // If the property doesn't exist, we'll default to an empty string (for no particular reason)
-                if (value == null)
-                {
-                    value = "";
-                }
-
-                results.put(attributeName, value);
-            }
-        }
-        catch (IOException e)
+        // look up the parsed properties file
+        Map<String, String> loadedProperties = propertiesFiles.get(propertiesName);
+        if (loadedProperties == null)
         {
             // Unable to find properties file, meaning the filter criteria doesn't match
             // Return an empty map instead of null as per the interface documentation
-            return new HashMap<String, Object>();
+            return results;
+        }
+
+        // read the corresponding attributes from the properties file
+        for (String attributeName : attributeNamesToFill)
+        {
+            String value = loadedProperties.get(attributeName);
+
+            // If the property doesn't exist, we'll default to an empty string (for no particular reason)
+            if (value == null)
+            {
+                value = "";
+            }
+
+            results.put(attributeName, value);
         }
 
         return results;
@@ -0,0 +1,403 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+
+/**
+ * An index of the attribute values of a set of resources, such as users, to the IDs of the resources holding them.
+ * Every attribute is indexed under its lower case name, and every string value under its lower case form.
+ *
+ * For each attribute the index keeps a hash map from value to IDs for equality lookups, the distinct values in a sorted
+ * set for prefix and range lookups, and the IDs of the resources that have the attribute at all. Substring lookups scan
+ * the distinct values of the attribute, which is usually far fewer than the resources.
+ *
+ * All structures are concurrent, so lookups run without locking. Callers must not index or unindex the same resource
+ * concurrently, and must unindex a resource with the same attributes it was indexed with.
+ *
+ * The changes made while storing a batch of resources can be deferred and applied together, so that each attribute
+ * value shared by the resources of the batch is updated once, and a value kept by an updated resource is not touched
+ * at all.
+ */
+class AttributeIndex
+{
+    private final Map<String, ValueIndex> valueIndexes = new ConcurrentHashMap<>();
+
+    // The changes deferred by resource ID, or null if changes are applied as they are made.
+    private Map<String, DeferredChange> deferredChanges;
+
+    /**
+     * Indexes every attribute of the resource with the given ID.
+     */
+    void add(String id, Map<String, AttributeValue> attributes)
+    {
+        if (deferredChanges != null)
+        {
+            deferredChanges.computeIfAbsent(id, key -> new DeferredChange(null)).attributes = attributes;
+            return;
+        }
+
+        for (Map.Entry<String, Set<String>> e : getLowerCaseValuesByAttribute(attributes).entrySet())
+        {
+            ValueIndex valueIndex = getOrCreateValueIndex(e.getKey());
+            for (String value : e.getValue())
+            {
+                addIds(valueIndex, value, Collections.singleton(id));
+            }
+            valueIndex.presentIds.add(id);
+        }
+    }
+
+    /**
+     * Removes every attribute of the resource with the given ID from the index.
+     */
+    void remove(String id, Map<String, AttributeValue> attributes)
+    {
+        if (deferredChanges != null)
+        {
+            deferredChanges.computeIfAbsent(id, key -> new DeferredChange(attributes)).attributes = null;
+            return;
+        }
+
+        for (Map.Entry<String, Set<String>> e : getLowerCaseValuesByAttribute(attributes).entrySet())
+        {
+            ValueIndex valueIndex = valueIndexes.get(e.getKey());
+            if (valueIndex == null)
+            {
+                continue;
+            }
+
+            for (String value : e.getValue())
+            {
+                removeIds(valueIndex, value, Collections.singleton(id));
+            }
+            valueIndex.presentIds.remove(id);
+        }
+    }
+
+    /**
+     * Starts collecting the changes made by {@link #add} and {@link #remove} instead of applying them, until
+     * {@link #applyDeferredChanges} is called. Lookups do not see the changes in the meantime. The caller must keep
+     * every other thread from changing the index until the changes are applied.
+     */
+    void deferChanges()
+    {
+        deferredChanges = new HashMap<>();
+    }
+
+    /**
+     * Applies the changes collected since {@link #deferChanges} was called, and goes back to applying changes as they
+     * are made. The changes to each resource are combined, so that only the values that differ between the attributes
+     * it was indexed with and its final attributes are updated, and the IDs of all the resources gaining or losing a
+     * value are added to or removed from it at once.
+     */
+    void applyDeferredChanges()
+    {
+        Map<String, DeferredChange> changes = deferredChanges;
+        deferredChanges = null;
+        if (changes == null)
+        {
+            return;
+        }
+
+        Map<String, AttributeChanges> changesByAttribute = new HashMap<>();
+        for (Map.Entry<String, DeferredChange> change : changes.entrySet())
+        {
+            String id = change.getKey();
+            Map<String, Set<String>> before = getLowerCaseValuesByAttribute(change.getValue().indexedAttributes);
+            Map<String, Set<String>> after = getLowerCaseValuesByAttribute(change.getValue().attributes);
+
+            for (Map.Entry<String, Set<String>> e : before.entrySet())
+            {
+                Set<String> kept = after.get(e.getKey());
+                AttributeChanges attributeChanges = changesByAttribute.computeIfAbsent(e.getKey(), name -> new AttributeChanges());
+                for (String value : e.getValue())
+                {
+                    if (kept == null || !kept.contains(value))
+                    {
+                        attributeChanges.removedIds.computeIfAbsent(value, key -> new HashSet<>()).add(id);
+                    }
+                }
+                if (kept == null)
+                {
+                    attributeChanges.absentIds.add(id);
+                }
+            }
+
+            for (Map.Entry<String, Set<String>> e : after.entrySet())
+            {
+                Set<String> previous = before.get(e.getKey());
+                AttributeChanges attributeChanges = changesByAttribute.computeIfAbsent(e.getKey(), name -> new AttributeChanges());
+                for (String value : e.getValue())
+                {
+                    if (previous == null || !previous.contains(value))
+                    {
+                        attributeChanges.addedIds.computeIfAbsent(value, key -> new HashSet<>()).add(id);
+                    }
+                }
+                if (previous == null)
+                {
+                    attributeChanges.presentIds.add(id);
+                }
+            }
+        }
+
+        for (Map.Entry<String, AttributeChanges> e : changesByAttribute.entrySet())
+        {
+            AttributeChanges attributeChanges = e.getValue();
+            ValueIndex valueIndex = getOrCreateValueIndex(e.getKey());
+            attributeChanges.removedIds.forEach((value, ids) -> removeIds(valueIndex, value, ids));
+            attributeChanges.addedIds.forEach((value, ids) -> addIds(valueIndex, value, ids));
+            valueIndex.presentIds.removeAll(attributeChanges.absentIds);
+            valueIndex.presentIds.addAll(attributeChanges.presentIds);
+        }
+    }
+
+    /**
+     * Returns the IDs of the resources that have the attribute.
+     */
+    Set<String> getPresentIds(String attributeName)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        return valueIndex != null ? Collections.unmodifiableSet(valueIndex.presentIds) : Collections.emptySet();
+    }
+
+    /**
+     * Returns the distinct lower case values of the attribute, in ascending order.
+     */
+    NavigableSet<String> getValues(String attributeName)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        return valueIndex != null ? Collections.unmodifiableNavigableSet(valueIndex.values) :
+                                    Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Returns the IDs of the resources with the given lower case value of the attribute.
+     */
+    Set<String> getIds(String attributeName, String lowerCaseValue)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        Set<String> ids = valueIndex != null ? valueIndex.idsByValue.get(lowerCaseValue) : null;
+        return ids != null ? Collections.unmodifiableSet(ids) : Collections.emptySet();
+    }
+
+    /**
+     * Returns the number of resources holding a value of the attribute in the range selected by the SCIM operator,
+     * which is one of sw, gt, ge, lt and le.
+     */
+    long countIdsInRange(String attributeName, String operator, String lowerCaseValue)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        if (valueIndex == null)
+        {
+            return 0;
+        }
+
+        long count = 0;
+        for (String value : getRange(valueIndex.values, operator, lowerCaseValue))
+        {
+            Set<String> ids = valueIndex.idsByValue.get(value);
+            count += ids != null ? ids.size() : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the IDs of the resources holding a value of the attribute in the range selected by the SCIM operator,
+     * which is one of sw, gt, ge, lt and le.
+     */
+    Set<String> getIdsInRange(String attributeName, String operator, String lowerCaseValue)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        return valueIndex != null ? collectIds(valueIndex, getRange(valueIndex.values, operator, lowerCaseValue)) :
+                                    Collections.emptySet();
+    }
+
+    /**
+     * Returns the IDs of the resources holding a value of the attribute that passes the test, given the lower case
+     * value.
+     */
+    Set<String> getIdsMatching(String attributeName, Predicate<String> test)
+    {
+        ValueIndex valueIndex = valueIndexes.get(attributeName);
+        if (valueIndex == null)
+        {
+            return Collections.emptySet();
+        }
+
+        Set<String> matchingValues = new HashSet<>();
+        for (String value : valueIndex.values)
+        {
+            if (test.test(value))
+            {
+                matchingValues.add(value);
+            }
+        }
+        return collectIds(valueIndex, matchingValues);
+    }
+
+    private static Set<String> collectIds(ValueIndex valueIndex, Iterable<String> values)
+    {
+        Set<String> collected = new HashSet<>();
+        for (String value : values)
+        {
+            Set<String> ids = valueIndex.idsByValue.get(value);
+            if (ids != null)
+            {
+                collected.addAll(ids);
+            }
+        }
+        return collected;
+    }
+
+    private static NavigableSet<String> getRange(NavigableSet<String> values, String operator, String lowerCaseValue)
+    {
+        switch (operator)
+        {
+            case "sw":
+                return values.subSet(lowerCaseValue, true, lowerCaseValue + Character.MAX_VALUE, true);
+            case "gt":
+                return values.tailSet(lowerCaseValue, false);
+            case "ge":
+                return values.tailSet(lowerCaseValue, true);
+            case "lt":
+                return values.headSet(lowerCaseValue, false);
+            case "le":
+                return values.headSet(lowerCaseValue, true);
+            default:
+                throw new IllegalArgumentException("Not a range operator: " + operator);
+        }
+    }
+
+    private ValueIndex getOrCreateValueIndex(String attributeName)
+    {
+        return valueIndexes.computeIfAbsent(attributeName, name -> new ValueIndex());
+    }
+
+    private static void addIds(ValueIndex valueIndex, String value, Collection<String> added)
+    {
+        valueIndex.idsByValue.compute(value, (key, ids) ->
+        {
+            Set<String> updated = ids;
+            if (updated == null)
+            {
+                updated = ConcurrentHashMap.newKeySet();
+                valueIndex.values.add(key);
+            }
+            updated.addAll(added);
+            return updated;
+        });
+    }
+
+    private static void removeIds(ValueIndex valueIndex, String value, Collection<String> removed)
+    {
+        valueIndex.idsByValue.computeIfPresent(value, (key, ids) ->
+        {
+            ids.removeAll(removed);
+            if (ids.isEmpty())
+            {
+                valueIndex.values.remove(key);
+                return null;
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * Returns the lower case values of each attribute by its lower case name. An attribute with a value that has no
+     * string values maps to an empty set.
+     */
+    private static Map<String, Set<String>> getLowerCaseValuesByAttribute(Map<String, AttributeValue> attributes)
+    {
+        if (attributes == null)
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Set<String>> valuesByAttribute = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> e : attributes.entrySet())
+        {
+            if (e.getValue() != null)
+            {
+                valuesByAttribute.computeIfAbsent(e.getKey().toLowerCase(Locale.ROOT), name -> new HashSet<>())
+                                 .addAll(getLowerCaseValues(e.getValue()));
+            }
+        }
+        return valuesByAttribute;
+    }
+
+    private static Set<String> getLowerCaseValues(AttributeValue attributeValue)
+    {
+        Set<String> values = new HashSet<>();
+        for (String value : attributeValue.getValues())
+        {
+            if (value != null)
+            {
+                values.add(value.toLowerCase(Locale.ROOT));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The index of the values of one attribute.
+     */
+    private static class ValueIndex
+    {
+        private final Map<String, Set<String>> idsByValue = new ConcurrentHashMap<>();
+        private final NavigableSet<String> values = new ConcurrentSkipListSet<>();
+        private final Set<String> presentIds = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * The attributes a resource was indexed with before its changes were deferred, and its attributes since.
+     */
+    private static class DeferredChange
+    {
+        private final Map<String, AttributeValue> indexedAttributes;
+        private Map<String, AttributeValue> attributes;
+
+        private DeferredChange(Map<String, AttributeValue> indexedAttributes)
+        {
+            this.indexedAttributes = indexedAttributes;
+            this.attributes = indexedAttributes;
+        }
+    }
+
+    /**
+     * The IDs of the resources gaining or losing each value of one attribute, and gaining or losing the attribute.
+     */
+    private static class AttributeChanges
+    {
+        private final Map<String, Set<String>> removedIds = new HashMap<>();
+        private final Map<String, Set<String>> addedIds = new HashMap<>();
+        private final Set<String> absentIds = new HashSet<>();
+        private final Set<String> presentIds = new HashSet<>();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * The attributes of a stored user or group, as an immutable, compact record.
+ *
+ * The attribute names are interned and held in a sorted array, with the values in a parallel array. A plain string
+ * value is held as the string itself and a multi-valued one as an array of strings; only values with objects or a
+ * masked flag are held as a private copy of their {@link AttributeValue}. Compared with an {@link AttributeMap}, this
+ * avoids a hash table entry and an AttributeValue with its lists for every attribute of every stored resource.
+ *
+ * A record never changes once built. A change makes a new record through {@link #with} or {@link #without}, and every
+ * AttributeValue handed out is a new copy, so a record can be shared with any number of readers without locking and
+ * without callers being able to change what is stored.
+ */
+final class AttributeRecord extends AbstractMap<String, AttributeValue>
+{
+    private static final String[] NO_NAMES = {};
+    private static final Object[] NO_VALUES = {};
+
+    private final String[] names;
+    private final Object[] values;
+
+    private AttributeRecord(String[] names, Object[] values)
+    {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Returns a record of the given attributes.
+     */
+    static AttributeRecord of(Map<String, AttributeValue> attributes)
+    {
+        if (attributes instanceof AttributeRecord)
+        {
+            return (AttributeRecord) attributes;
+        }
+
+        Map<String, AttributeValue> sorted = new TreeMap<>(attributes);
+        String[] names = sorted.isEmpty() ? NO_NAMES : new String[sorted.size()];
+        Object[] values = sorted.isEmpty() ? NO_VALUES : new Object[sorted.size()];
+
+        int i = 0;
+        for (Map.Entry<String, AttributeValue> e : sorted.entrySet())
+        {
+            names[i] = e.getKey().intern();
+            values[i] = compact(e.getValue());
+            i++;
+        }
+        return new AttributeRecord(names, values);
+    }
+
+    /**
+     * Returns a record with the attribute set to the given value, and all the other attributes of this one.
+     */
+    AttributeRecord with(String name, AttributeValue value)
+    {
+        int i = Arrays.binarySearch(names, name);
+        if (i >= 0)
+        {
+            Object[] updatedValues = values.clone();
+            updatedValues[i] = compact(value);
+            return new AttributeRecord(names, updatedValues);
+        }
+
+        int insertAt = -i - 1;
+        String[] updatedNames = new String[names.length + 1];
+        Object[] updatedValues = new Object[values.length + 1];
+        System.arraycopy(names, 0, updatedNames, 0, insertAt);
+        System.arraycopy(values, 0, updatedValues, 0, insertAt);
+        updatedNames[insertAt] = name.intern();
+        updatedValues[insertAt] = compact(value);
+        System.arraycopy(names, insertAt, updatedNames, insertAt + 1, names.length - insertAt);
+        System.arraycopy(values, insertAt, updatedValues, insertAt + 1, values.length - insertAt);
+        return new AttributeRecord(updatedNames, updatedValues);
+    }
+
+    /**
+     * Returns a record with all the attributes of this one except the given one.
+     */
+    AttributeRecord without(String name)
+    {
+        int i = Arrays.binarySearch(names, name);
+        if (i < 0)
+        {
+            return this;
+        }
+
+        String[] updatedNames = new String[names.length - 1];
+        Object[] updatedValues = new Object[values.length - 1];
+        System.arraycopy(names, 0, updatedNames, 0, i);
+        System.arraycopy(values, 0, updatedValues, 0, i);
+        System.arraycopy(names, i + 1, updatedNames, i, names.length - i - 1);
+        System.arraycopy(values, i + 1, updatedValues, i, values.length - i - 1);
+        return new AttributeRecord(updatedNames, updatedValues);
+    }
+
+    /**
+     * Returns the first value of the attribute, as {@link AttributeMap#getSingleValue} does, without copying it.
+     */
+    String getSingleValue(String name)
+    {
+        int i = Arrays.binarySearch(names, name);
+        return i >= 0 ? firstValue(values[i]) : null;
+    }
+
+    /**
+     * Returns the first value of the attribute of the given name, ignoring case, without copying it.
+     */
+    String getSingleValueIgnoreCase(String name)
+    {
+        int i = indexOfIgnoreCase(name);
+        return i >= 0 ? firstValue(values[i]) : null;
+    }
+
+    /**
+     * Returns whether the attribute of the given name, ignoring case, has a first value, be it a string or an object.
+     */
+    boolean isPresentIgnoreCase(String name)
+    {
+        int i = indexOfIgnoreCase(name);
+        if (i < 0 || values[i] == null)
+        {
+            return false;
+        }
+
+        Object value = values[i];
+        if (value instanceof AttributeValue)
+        {
+            AttributeValue attributeValue = (AttributeValue) value;
+            return attributeValue.getValue() != null || attributeValue.getObjectValue() != null;
+        }
+        return firstValue(value) != null;
+    }
+
+    /**
+     * Returns whether any string value of the attribute of the given name, ignoring case, passes the test. The values
+     * are read in place, without building an AttributeValue.
+     */
+    boolean anyValueIgnoreCase(String name, Predicate<String> test)
+    {
+        int i = indexOfIgnoreCase(name);
+        if (i < 0 || values[i] == null)
+        {
+            return false;
+        }
+
+        Object value = values[i];
+        if (value instanceof String)
+        {
+            return test.test((String) value);
+        }
+        if (value instanceof String[])
+        {
+            for (String string : (String[]) value)
+            {
+                if (test.test(string))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (String string : ((AttributeValue) value).getValues())
+        {
+            if (test.test(string))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of the attribute of the given name, preferring an exact match and otherwise ignoring case,
+     * or -1 if there is none. A record holds few attributes, so the names are simply scanned when the case differs.
+     */
+    private int indexOfIgnoreCase(String name)
+    {
+        int i = Arrays.binarySearch(names, name);
+        if (i >= 0)
+        {
+            return i;
+        }
+
+        for (int j = 0; j < names.length; j++)
+        {
+            if (names[j].equalsIgnoreCase(name))
+            {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private static String firstValue(Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        if (value instanceof String)
+        {
+            return (String) value;
+        }
+        if (value instanceof String[])
+        {
+            String[] strings = (String[]) value;
+            return strings.length > 0 ? strings[0] : null;
+        }
+        return ((AttributeValue) value).getValue();
+    }
+
+    /**
+     * Returns a new, mutable map of the attributes, for a response to a provisioning request.
+     */
+    AttributeMap toAttributeMap()
+    {
+        AttributeMap attributeMap = new AttributeMap();
+        for (int i = 0; i < names.length; i++)
+        {
+            attributeMap.put(names[i], expand(values[i]));
+        }
+        return attributeMap;
+    }
+
+    @Override
+    public AttributeValue get(Object name)
+    {
+        int i = name instanceof String ? Arrays.binarySearch(names, (String) name) : -1;
+        return i >= 0 ? expand(values[i]) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object name)
+    {
+        return name instanceof String && Arrays.binarySearch(names, (String) name) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return names.length;
+    }
+
+    @Override
+    public Set<Map.Entry<String, AttributeValue>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, AttributeValue>>()
+        {
+            @Override
+            public Iterator<Map.Entry<String, AttributeValue>> iterator()
+            {
+                return new Iterator<Map.Entry<String, AttributeValue>>()
+                {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return next < names.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, AttributeValue> next()
+                    {
+                        if (next >= names.length)
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new AbstractMap.SimpleImmutableEntry<>(names[i], expand(values[i]));
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return names.length;
+            }
+        };
+    }
+
+    private static Object compact(AttributeValue attributeValue)
+    {
+        if (attributeValue == null)
+        {
+            return null;
+        }
+
+        Iterable<? extends Object> objectValues = attributeValue.getAllObjectValues();
+        boolean hasObjects = objectValues != null && objectValues.iterator().hasNext();
+        if (hasObjects || attributeValue.isMasked())
+        {
+            return new AttributeValue(attributeValue);
+        }
+
+        List<String> strings = new ArrayList<>();
+        for (String value : attributeValue.getValues())
+        {
+            strings.add(value);
+        }
+        return strings.size() == 1 && strings.get(0) != null ? strings.get(0) : strings.toArray(new String[0]);
+    }
+
+    private static AttributeValue expand(Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        if (value instanceof String)
+        {
+            return new AttributeValue((String) value);
+        }
+        if (value instanceof String[])
+        {
+            return new AttributeValue(Arrays.asList((String[]) value));
+        }
+        return new AttributeValue((AttributeValue) value);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * A create, update or delete of a single user or group, to be applied as part of a batch by
+ * {@link SampleIdentityStoreProvisioner#applyBatch}.
+ */
+public class BatchOperation
+{
+    /**
+     * The kind of resource an operation applies to.
+     */
+    public enum ResourceType
+    {
+        USER, GROUP
+    }
+
+    /**
+     * What an operation does to its resource.
+     */
+    public enum Method
+    {
+        CREATE, UPDATE, DELETE
+    }
+
+    private final ResourceType resourceType;
+    private final Method method;
+    private final String id;
+    private final AttributeMap attributes;
+
+    private BatchOperation(ResourceType resourceType, Method method, String id, AttributeMap attributes)
+    {
+        this.resourceType = resourceType;
+        this.method = method;
+        this.id = id;
+        this.attributes = attributes;
+    }
+
+    public static BatchOperation createUser(AttributeMap attributes)
+    {
+        return new BatchOperation(ResourceType.USER, Method.CREATE, null, attributes);
+    }
+
+    public static BatchOperation updateUser(String id, AttributeMap attributes)
+    {
+        return new BatchOperation(ResourceType.USER, Method.UPDATE, id, attributes);
+    }
+
+    public static BatchOperation deleteUser(String id)
+    {
+        return new BatchOperation(ResourceType.USER, Method.DELETE, id, null);
+    }
+
+    public static BatchOperation createGroup(AttributeMap attributes)
+    {
+        return new BatchOperation(ResourceType.GROUP, Method.CREATE, null, attributes);
+    }
+
+    public static BatchOperation updateGroup(String id, AttributeMap attributes)
+    {
+        return new BatchOperation(ResourceType.GROUP, Method.UPDATE, id, attributes);
+    }
+
+    public static BatchOperation deleteGroup(String id)
+    {
+        return new BatchOperation(ResourceType.GROUP, Method.DELETE, id, null);
+    }
+
+    public ResourceType getResourceType()
+    {
+        return resourceType;
+    }
+
+    public Method getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Returns the ID of the user or group to update or delete, or null for a create.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the attributes of the user or group to create or update, or null for a delete.
+     */
+    public AttributeMap getAttributes()
+    {
+        return attributes;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import org.sourceid.util.log.AttributeMap;
+
+import com.pingidentity.sdk.provision.exception.IdentityStoreException;
+
+/**
+ * The outcome of one {@link BatchOperation}: the attributes of the user or group it created or updated, or the
+ * exception the single-resource method for the operation would have thrown, such as a ConflictException or a
+ * NotFoundException.
+ */
+public class BatchResult
+{
+    private final BatchOperation operation;
+    private final AttributeMap attributes;
+    private final IdentityStoreException error;
+
+    BatchResult(BatchOperation operation, AttributeMap attributes, IdentityStoreException error)
+    {
+        this.operation = operation;
+        this.attributes = attributes;
+        this.error = error;
+    }
+
+    public BatchOperation getOperation()
+    {
+        return operation;
+    }
+
+    public boolean isSuccess()
+    {
+        return error == null;
+    }
+
+    /**
+     * Returns the attributes of the created or updated user or group, or null if the operation was a delete or
+     * failed.
+     */
+    public AttributeMap getAttributes()
+    {
+        return attributes;
+    }
+
+    /**
+     * Returns the reason the operation failed, or null if it succeeded.
+     */
+    public IdentityStoreException getError()
+    {
+        return error;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bounded journal of the changes to the users and groups, numbered with consecutive sequence numbers.
+ *
+ * The changes are held in a ring of a fixed capacity, the oldest giving way to the newest, so the journal takes a
+ * fixed amount of memory however many changes are made. A change holds the immutable record stored by the change
+ * rather than a copy of it, so a change to a user or group that has not changed since costs no more than the change
+ * itself. Appending and reading are serialized, so a reader sees the changes in sequence order with no gaps.
+ */
+class ChangeJournal
+{
+    private final ResourceChange[] changes;
+
+    // The sequence number of the next change, and that of the oldest change still held.
+    private long nextSequence = 1;
+    private long oldestSequence = 1;
+
+    ChangeJournal(int capacity)
+    {
+        changes = new ResourceChange[capacity];
+    }
+
+    /**
+     * Records a change, returning its sequence number.
+     */
+    synchronized long append(BatchOperation.ResourceType resourceType, ResourceChange.Type type, String id,
+                             AttributeRecord attributes)
+    {
+        long sequence = nextSequence++;
+        changes[slot(sequence)] = new ResourceChange(sequence, System.currentTimeMillis(), resourceType, type, id,
+                                                     attributes);
+        if (sequence - oldestSequence >= changes.length)
+        {
+            oldestSequence = sequence - changes.length + 1;
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence number of the last change, or 0 if there have been none.
+     */
+    synchronized long getLastSequence()
+    {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Returns up to maxChanges of the changes after the given sequence number.
+     */
+    synchronized ResourceChanges getChangesSince(long sequence, int maxChanges)
+    {
+        long lastSequence = nextSequence - 1;
+        if (sequence > lastSequence || sequence < oldestSequence - 1)
+        {
+            return new ResourceChanges(Collections.emptyList(), sequence, false, true);
+        }
+
+        long end = Math.min(lastSequence, sequence + maxChanges);
+        List<ResourceChange> batch = new ArrayList<>((int) (end - sequence));
+        for (long s = sequence + 1; s <= end; s++)
+        {
+            batch.add(changes[slot(s)]);
+        }
+        return new ResourceChanges(batch, end, end < lastSequence, false);
+    }
+
+    private int slot(long sequence)
+    {
+        return (int) (sequence % changes.length);
+    }
+}
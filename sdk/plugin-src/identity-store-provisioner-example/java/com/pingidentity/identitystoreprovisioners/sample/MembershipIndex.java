@@ -0,0 +1,176 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pingidentity.sdk.provision.groups.request.MemberAttribute;
+
+/**
+ * The members of each group, and the reverse index of the groups each user or group is a member of.
+ *
+ * Members can be added to or removed from a group without touching its other members, so that a change to a large
+ * group costs in proportion to the change rather than to the group. Both directions are updated together while the
+ * group is locked, so a member is listed by a group exactly when the group is listed for the member.
+ */
+class MembershipIndex
+{
+    private final Map<String, Map<String, MemberAttribute>> membersByGroupId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> groupIdsByMemberId = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the members of a group. Only the members that differ from the current ones are updated in the
+     * reverse index.
+     */
+    void setMembers(String groupId, Collection<MemberAttribute> members)
+    {
+        Map<String, MemberAttribute> updated = new LinkedHashMap<>();
+        for (MemberAttribute member : members)
+        {
+            updated.put(member.getId(), member);
+        }
+
+        membersByGroupId.compute(groupId, (key, current) ->
+        {
+            Map<String, MemberAttribute> groupMembers = current != null ? current : new ConcurrentHashMap<>();
+            for (String memberId : new ArrayList<>(groupMembers.keySet()))
+            {
+                if (!updated.containsKey(memberId))
+                {
+                    groupMembers.remove(memberId);
+                    unlinkGroup(memberId, groupId);
+                }
+            }
+            for (MemberAttribute member : updated.values())
+            {
+                if (groupMembers.put(member.getId(), member) == null)
+                {
+                    linkGroup(member.getId(), groupId);
+                }
+            }
+            return groupMembers;
+        });
+    }
+
+    /**
+     * Adds members to a group, keeping its existing members. Returns false if the group is not in the index.
+     */
+    boolean addMembers(String groupId, Collection<MemberAttribute> members)
+    {
+        return membersByGroupId.computeIfPresent(groupId, (key, groupMembers) ->
+        {
+            for (MemberAttribute member : members)
+            {
+                if (groupMembers.put(member.getId(), member) == null)
+                {
+                    linkGroup(member.getId(), groupId);
+                }
+            }
+            return groupMembers;
+        }) != null;
+    }
+
+    /**
+     * Removes members from a group, keeping its other members. Returns false if the group is not in the index.
+     */
+    boolean removeMembers(String groupId, Collection<String> memberIds)
+    {
+        return membersByGroupId.computeIfPresent(groupId, (key, groupMembers) ->
+        {
+            for (String memberId : memberIds)
+            {
+                if (groupMembers.remove(memberId) != null)
+                {
+                    unlinkGroup(memberId, groupId);
+                }
+            }
+            return groupMembers;
+        }) != null;
+    }
+
+    /**
+     * Removes a group along with its memberships, both its own members and the groups it is a member of. Returns the
+     * IDs of the groups it was removed from.
+     */
+    Set<String> removeGroup(String groupId)
+    {
+        membersByGroupId.computeIfPresent(groupId, (key, groupMembers) ->
+        {
+            for (String memberId : groupMembers.keySet())
+            {
+                unlinkGroup(memberId, groupId);
+            }
+            return null;
+        });
+        return removeMember(groupId);
+    }
+
+    /**
+     * Removes a user or group from every group it is a member of, visiting only those groups. Returns the IDs of the
+     * groups it was removed from.
+     */
+    Set<String> removeMember(String memberId)
+    {
+        Set<String> groupIds = getGroupIds(memberId);
+        groupIds.removeIf(groupId -> !removeMembers(groupId, Collections.singleton(memberId)));
+        return groupIds;
+    }
+
+    /**
+     * Returns the members of a group.
+     */
+    List<MemberAttribute> getMembers(String groupId)
+    {
+        Map<String, MemberAttribute> groupMembers = membersByGroupId.get(groupId);
+        return groupMembers != null ? new ArrayList<>(groupMembers.values()) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the IDs of the groups a user or group is directly a member of.
+     */
+    Set<String> getGroupIds(String memberId)
+    {
+        Set<String> groupIds = groupIdsByMemberId.get(memberId);
+        return groupIds != null ? new HashSet<>(groupIds) : Collections.emptySet();
+    }
+
+    private void linkGroup(String memberId, String groupId)
+    {
+        groupIdsByMemberId.compute(memberId, (key, groupIds) ->
+        {
+            Set<String> updated = groupIds != null ? groupIds : ConcurrentHashMap.newKeySet();
+            updated.add(groupId);
+            return updated;
+        });
+    }
+
+    private void unlinkGroup(String memberId, String groupId)
+    {
+        groupIdsByMemberId.computeIfPresent(memberId, (key, groupIds) ->
+        {
+            groupIds.remove(groupId);
+            return groupIds.isEmpty() ? null : groupIds;
+        });
+    }
+}
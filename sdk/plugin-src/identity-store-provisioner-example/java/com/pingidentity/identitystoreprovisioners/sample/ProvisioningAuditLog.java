@@ -0,0 +1,183 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+
+/**
+ * A structured audit stream of provisioning operations, written to its own log category so that it can be routed and
+ * leveled independently of the plugin's diagnostic logging.
+ *
+ * Each operation is recorded as a single line of key=value pairs at INFO. The attributes of the users and groups
+ * involved are recorded at DEBUG; for operations returning many resources only one resource in every
+ * {@link #setResourceSampleRate(int) sample rate} is recorded. Messages are only built once the level is known to be
+ * enabled and the resource has been sampled, so a disabled level costs a single check.
+ */
+class ProvisioningAuditLog
+{
+    /**
+     * The log category of the audit stream.
+     */
+    static final String CATEGORY = "com.pingidentity.identitystoreprovisioners.sample.audit";
+
+    private static final int DEFAULT_RESOURCE_SAMPLE_RATE = 100;
+
+    private final Log log;
+    private final AtomicLong sampledResources = new AtomicLong();
+    private volatile int resourceSampleRate = DEFAULT_RESOURCE_SAMPLE_RATE;
+
+    ProvisioningAuditLog()
+    {
+        this(LogFactory.getLog(CATEGORY));
+    }
+
+    ProvisioningAuditLog(Log log)
+    {
+        this.log = log;
+    }
+
+    /**
+     * Sets how many of the resources returned by a listing are passed over for each one whose attributes are
+     * recorded. A rate of 1 records every resource.
+     */
+    void setResourceSampleRate(int resourceSampleRate)
+    {
+        this.resourceSampleRate = Math.max(1, resourceSampleRate);
+    }
+
+    int getResourceSampleRate()
+    {
+        return resourceSampleRate;
+    }
+
+    /**
+     * Records an operation at INFO, as the event name followed by the given key and value pairs.
+     */
+    void event(String event, Object... keysAndValues)
+    {
+        if (log.isInfoEnabled())
+        {
+            log.info(format(event, keysAndValues).toString());
+        }
+    }
+
+    /**
+     * Records the attributes of a single resource read, created or updated by an operation at DEBUG.
+     */
+    void resource(String event, String id, Map<String, AttributeValue> attributes)
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug(formatResource(event, id, attributes));
+        }
+    }
+
+    /**
+     * Records the attributes of one of the many resources returned by an operation at DEBUG, if it is sampled.
+     */
+    void sampledResource(String event, String id, Map<String, AttributeValue> attributes)
+    {
+        if (log.isDebugEnabled() && sampledResources.getAndIncrement() % resourceSampleRate == 0)
+        {
+            log.debug(formatResource(event, id, attributes));
+        }
+    }
+
+    private static String formatResource(String event, String id, Map<String, AttributeValue> attributes)
+    {
+        StringBuilder message = format(event, "id", id);
+        message.append(" attributes={");
+
+        String separator = "";
+        for (Map.Entry<String, AttributeValue> e : attributes.entrySet())
+        {
+            AttributeValue attributeValue = e.getValue();
+            if (attributeValue == null)
+            {
+                continue;
+            }
+
+            if (attributeValue.getValue() != null)
+            {
+                message.append(separator).append(e.getKey()).append('=').append(attributeValue.getValue());
+            }
+            else if (attributeValue.getObjectValue() != null)
+            {
+                message.append(separator).append(e.getKey()).append("=(Object)");
+                for (Object o : attributeValue.getAllObjectValues())
+                {
+                    message.append(' ').append(o);
+                }
+            }
+            else
+            {
+                continue;
+            }
+            separator = ", ";
+        }
+
+        return message.append('}').toString();
+    }
+
+    private static StringBuilder format(String event, Object... keysAndValues)
+    {
+        StringBuilder message = new StringBuilder(64).append("event=").append(event);
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2)
+        {
+            message.append(' ').append(keysAndValues[i]).append('=');
+            appendValue(message, keysAndValues[i + 1]);
+        }
+        return message;
+    }
+
+    /**
+     * Appends a value, quoting it if it is empty or contains spaces, quotes or equals signs, so that the line can be
+     * split back into its pairs.
+     */
+    private static void appendValue(StringBuilder message, Object value)
+    {
+        String text = String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++)
+        {
+            char c = text.charAt(i);
+            quote = Character.isWhitespace(c) || c == '"' || c == '=';
+        }
+
+        if (!quote)
+        {
+            message.append(text);
+            return;
+        }
+
+        message.append('"');
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                message.append('\\');
+            }
+            message.append(c);
+        }
+        message.append('"');
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import org.sourceid.util.log.AttributeMap;
+
+/**
+ * A change to a single user or group, as recorded in the change journal of a {@link SampleIdentityStoreProvisioner}
+ * and returned by {@link SampleIdentityStoreProvisioner#getChangesSince}.
+ */
+public class ResourceChange
+{
+    /**
+     * What a change did to its user or group.
+     */
+    public enum Type
+    {
+        CREATE, UPDATE, DISABLE, DELETE
+    }
+
+    private final long sequence;
+    private final long timestamp;
+    private final BatchOperation.ResourceType resourceType;
+    private final Type type;
+    private final String id;
+    private final AttributeRecord attributes;
+
+    ResourceChange(long sequence, long timestamp, BatchOperation.ResourceType resourceType, Type type, String id,
+                   AttributeRecord attributes)
+    {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.resourceType = resourceType;
+        this.type = type;
+        this.id = id;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Returns the sequence number of the change. Each change has a sequence number one higher than the change before.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Returns the time of the change, in milliseconds since the epoch.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public BatchOperation.ResourceType getResourceType()
+    {
+        return resourceType;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns a copy of the attributes of the user or group as they were right after the change, or null for a
+     * delete. The attributes of a group do not include its members; a change to the members of a group is recorded
+     * as an update of the group, and its current members are returned by readGroup.
+     */
+    public AttributeMap getAttributes()
+    {
+        return attributes != null ? attributes.toAttributeMap() : null;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.List;
+
+/**
+ * A batch of changes read from the change journal of a {@link SampleIdentityStoreProvisioner}, in sequence order.
+ */
+public class ResourceChanges
+{
+    private final List<ResourceChange> changes;
+    private final long lastSequence;
+    private final boolean more;
+    private final boolean resyncRequired;
+
+    ResourceChanges(List<ResourceChange> changes, long lastSequence, boolean more, boolean resyncRequired)
+    {
+        this.changes = changes;
+        this.lastSequence = lastSequence;
+        this.more = more;
+        this.resyncRequired = resyncRequired;
+    }
+
+    public List<ResourceChange> getChanges()
+    {
+        return changes;
+    }
+
+    /**
+     * Returns the sequence number to read the following changes from: that of the last change in the batch, or the
+     * one the batch was read from if it is empty.
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Returns true if there were more changes than the batch could hold, and the rest may be read from
+     * {@link #getLastSequence()} right away.
+     */
+    public boolean hasMore()
+    {
+        return more;
+    }
+
+    /**
+     * Returns true if the journal no longer holds the changes right after the sequence number the batch was read from,
+     * either because they were dropped to keep the journal within its capacity or because the journal started over
+     * when the provisioner was created. The batch is then empty, and the reader has to read every user and group again
+     * before reading changes from {@link SampleIdentityStoreProvisioner#getLastChangeSequence()} as taken before the
+     * full read.
+     */
+    public boolean isResyncRequired()
+    {
+        return resyncRequired;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Selects the page of users or groups requested by a SCIM list request, such as readUsers, from a cache of resources
+ * and the index of their attributes.
+ *
+ * Resources are sorted by the lower case form of the sort attribute, which is computed once per resource rather than
+ * on every comparison. Resources without the sort attribute come last, and resources with the same value are ordered
+ * by ID, so that the order is the same from one request to the next. Only the resources up to the end of the
+ * requested page are ever sorted: they are selected with a heap bounded to the size of the page and its start index.
+ * When no filter narrows down the resources, the sorted values of the sort attribute in the index are walked instead,
+ * so that only the resources up to the end of the page are visited at all.
+ *
+ * The pager also remembers where the last page returned for each query ended. A request for the page that follows it
+ * resumes from the sort key of the last resource returned rather than from its start index, so that a client walking
+ * through the pages does not revisit the earlier ones. The cursors are shared by every caller sending the same query,
+ * so one is only resumed while no resource has been created, changed or removed since it was saved, when it selects
+ * exactly the page the start index does. Otherwise the page is selected by its start index.
+ */
+class ResourcePager
+{
+    private static final int MAX_CURSORS = 1000;
+
+    private final Map<String, AttributeRecord> cache;
+    private final AttributeIndex index;
+
+    // The number of changes made to the resources, saved with each cursor to tell whether it is still current.
+    private final AtomicLong modifications = new AtomicLong();
+
+    // The end of the last page returned for each query, most recently used last.
+    private final Map<String, Cursor> cursors = Collections.synchronizedMap(new LinkedHashMap<String, Cursor>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest)
+        {
+            return size() > MAX_CURSORS;
+        }
+    });
+
+    ResourcePager(Map<String, AttributeRecord> cache, AttributeIndex index)
+    {
+        this.cache = cache;
+        this.index = index;
+    }
+
+    /**
+     * Records that a resource has been created, changed or removed, so that no cursor saved before is resumed. Must
+     * be called once the change is visible in the cache and the index.
+     */
+    void resourceChanged()
+    {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns a page of the resources that pass the test.
+     *
+     * @param query
+     *            identifies the query the page is part of, such as its filter and sort order, so that a request for
+     *            the following page can resume where this one ends.
+     * @param candidateIds
+     *            the IDs of the resources that may pass the test, or null if every resource may.
+     * @param include
+     *            the test a resource must pass to be returned.
+     * @param sortBy
+     *            the name of the attribute to sort by, or null to return the resources unsorted.
+     * @param descending
+     *            whether to sort in descending order.
+     * @param startIndex
+     *            the position of the first resource to return, starting at 1.
+     * @param count
+     *            the maximum number of resources to return. Every resource is returned unless both the start index
+     *            and the count are positive.
+     */
+    List<AttributeRecord> getPage(String query, Collection<String> candidateIds,
+                                  Predicate<AttributeRecord> include, String sortBy, boolean descending,
+                                  int startIndex, int count)
+    {
+        boolean paginate = startIndex > 0 && count > 0;
+        int skip = paginate ? startIndex - 1 : 0;
+        int limit = paginate ? count : Integer.MAX_VALUE;
+        Collection<String> ids = candidateIds != null ? candidateIds : cache.keySet();
+
+        if (sortBy == null)
+        {
+            return getUnsortedPage(ids, include, skip, limit);
+        }
+
+        Comparator<SortEntry> order = getOrder(descending);
+
+        // Read before selecting, so that a change made during the selection makes the cursor saved below stale.
+        long modification = modifications.get();
+
+        // Resume after the last resource of the previous page if this is the one that follows it, and no resource has
+        // changed since.
+        SortEntry after = null;
+        Cursor cursor = cursors.get(query);
+        if (cursor != null && cursor.endIndex == skip && cursor.modification == modification)
+        {
+            after = cursor.last;
+            skip = 0;
+        }
+
+        List<SortEntry> page = candidateIds != null ?
+                selectCandidates(ids, include, sortBy, order, after, skip, limit) :
+                walkIndex(include, sortBy, descending, order, after, skip, limit);
+
+        if (paginate && !page.isEmpty())
+        {
+            cursors.put(query, new Cursor(startIndex - 1 + page.size(), page.get(page.size() - 1), modification));
+        }
+
+        List<AttributeRecord> resources = new ArrayList<>(page.size());
+        for (SortEntry entry : page)
+        {
+            resources.add(entry.attributes);
+        }
+        return resources;
+    }
+
+    private List<AttributeRecord> getUnsortedPage(Collection<String> ids, Predicate<AttributeRecord> include,
+                                                  int skip, int limit)
+    {
+        List<AttributeRecord> page = new ArrayList<>();
+        for (String id : ids)
+        {
+            AttributeRecord attributes = cache.get(id);
+            if (attributes == null || !include.test(attributes))
+            {
+                continue;
+            }
+
+            if (skip > 0)
+            {
+                skip--;
+            }
+            else if (page.size() < limit)
+            {
+                page.add(attributes);
+            }
+            else
+            {
+                break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Sorts the candidates that pass the test and follow the given entry, keeping only those up to the end of the
+     * page.
+     */
+    private List<SortEntry> selectCandidates(Collection<String> ids, Predicate<AttributeRecord> include, String sortBy,
+                                             Comparator<SortEntry> order, SortEntry after, int skip, int limit)
+    {
+        Selection selection = new Selection(order, skip, limit);
+        for (String id : ids)
+        {
+            AttributeRecord attributes = cache.get(id);
+            if (attributes == null || !include.test(attributes))
+            {
+                continue;
+            }
+
+            SortEntry entry = new SortEntry(id, getSortKey(attributes, sortBy), attributes);
+            if (after == null || order.compare(entry, after) > 0)
+            {
+                selection.offer(entry);
+            }
+        }
+        return selection.getPage();
+    }
+
+    /**
+     * Walks the values of the sort attribute in the index in sort order, starting from the value of the given entry,
+     * and returns the resources holding them that pass the test until the page is full. A resource is only visited
+     * under the value it is sorted by. The resources without the sort attribute follow the last value.
+     */
+    private List<SortEntry> walkIndex(Predicate<AttributeRecord> include, String sortBy, boolean descending,
+                                      Comparator<SortEntry> order, SortEntry after, int skip, int limit)
+    {
+        List<SortEntry> page = new ArrayList<>();
+        // The index holds attribute names in lower case, while the records keep them as given
+        String indexedName = sortBy.toLowerCase(Locale.ROOT);
+
+        if (after == null || after.key != null)
+        {
+            NavigableSet<String> values = index.getValues(indexedName);
+            if (after != null)
+            {
+                values = descending ? values.headSet(after.key, true) : values.tailSet(after.key, true);
+            }
+            if (descending)
+            {
+                values = values.descendingSet();
+            }
+
+            for (String value : values)
+            {
+                List<SortEntry> entries = new ArrayList<>();
+                for (String id : index.getIds(indexedName, value))
+                {
+                    AttributeRecord attributes = cache.get(id);
+                    if (attributes == null || !value.equals(getSortKey(attributes, sortBy))
+                            || !include.test(attributes))
+                    {
+                        continue;
+                    }
+
+                    SortEntry entry = new SortEntry(id, value, attributes);
+                    if (after == null || order.compare(entry, after) > 0)
+                    {
+                        entries.add(entry);
+                    }
+                }
+
+                if (skip >= entries.size())
+                {
+                    skip -= entries.size();
+                    continue;
+                }
+
+                Selection selection = new Selection(order, skip, remaining(limit, page));
+                entries.forEach(selection::offer);
+                page.addAll(selection.getPage());
+                skip = 0;
+
+                if (page.size() >= limit)
+                {
+                    return page;
+                }
+            }
+        }
+
+        // The resources without the sort attribute can only be found by visiting every resource.
+        Selection selection = new Selection(order, skip, remaining(limit, page));
+        for (Map.Entry<String, AttributeRecord> e : cache.entrySet())
+        {
+            if (getSortKey(e.getValue(), sortBy) != null || !include.test(e.getValue()))
+            {
+                continue;
+            }
+
+            SortEntry entry = new SortEntry(e.getKey(), null, e.getValue());
+            if (after == null || order.compare(entry, after) > 0)
+            {
+                selection.offer(entry);
+            }
+        }
+        page.addAll(selection.getPage());
+        return page;
+    }
+
+    private static int remaining(int limit, List<SortEntry> page)
+    {
+        return limit != Integer.MAX_VALUE ? limit - page.size() : limit;
+    }
+
+    private static Comparator<SortEntry> getOrder(boolean descending)
+    {
+        Comparator<String> direction = descending ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        return Comparator.comparing((SortEntry entry) -> entry.key, Comparator.nullsLast(direction))
+                         .thenComparing(entry -> entry.id, direction);
+    }
+
+    private static String getSortKey(AttributeRecord attributes, String sortBy)
+    {
+        String value = attributes.getSingleValueIgnoreCase(sortBy);
+        return value != null ? value.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * A resource and the key it is sorted by.
+     */
+    private static class SortEntry
+    {
+        private final String id;
+        private final String key;
+        private final AttributeRecord attributes;
+
+        private SortEntry(String id, String key, AttributeRecord attributes)
+        {
+            this.id = id;
+            this.key = key;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The number of resources up to the end of the last page returned for a query, and the last resource on it.
+     */
+    private static class Cursor
+    {
+        private final int endIndex;
+        private final SortEntry last;
+        private final long modification;
+
+        private Cursor(int endIndex, SortEntry last, long modification)
+        {
+            this.endIndex = endIndex;
+            this.last = last;
+            this.modification = modification;
+        }
+    }
+
+    /**
+     * Selects the entries at positions skip to skip + limit of the entries offered to it in sort order, holding only
+     * the first skip + limit of them in a heap whose head is the last of those.
+     */
+    private static class Selection
+    {
+        private final Comparator<SortEntry> order;
+        private final int skip;
+        private final long capacity;
+        private final PriorityQueue<SortEntry> heap;
+        private final List<SortEntry> all;
+
+        private Selection(Comparator<SortEntry> order, int skip, int limit)
+        {
+            this.order = order;
+            this.skip = skip;
+            this.capacity = (long) skip + limit;
+
+            // A page that reaches the end of the resources needs every one of them, so they are simply sorted.
+            heap = limit != Integer.MAX_VALUE ? new PriorityQueue<>(order.reversed()) : null;
+            all = heap == null ? new ArrayList<>() : null;
+        }
+
+        private void offer(SortEntry entry)
+        {
+            if (heap == null)
+            {
+                all.add(entry);
+            }
+            else if (heap.size() < capacity)
+            {
+                heap.add(entry);
+            }
+            else if (order.compare(entry, heap.peek()) < 0)
+            {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        private List<SortEntry> getPage()
+        {
+            List<SortEntry> sorted = heap != null ? new ArrayList<>(heap) : all;
+            sorted.sort(order);
+            return sorted.size() > skip ? sorted.subList(skip, (int) Math.min(sorted.size(), capacity)) :
+                                          Collections.emptyList();
+        }
+    }
+}
@@ -16,15 +16,17 @@
 package com.pingidentity.identitystoreprovisioners.sample;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Random;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -41,6 +43,7 @@ import com.pingidentity.sdk.PluginDescriptor;
 import com.pingidentity.sdk.provision.Constants;
 import com.pingidentity.sdk.provision.IdentityStoreProvisionerWithFiltering;
 import com.pingidentity.sdk.provision.exception.ConflictException;
+import com.pingidentity.sdk.provision.exception.FilterException;
 import com.pingidentity.sdk.provision.exception.IdentityStoreException;
 import com.pingidentity.sdk.provision.exception.NotFoundException;
 import com.pingidentity.sdk.provision.groups.request.CreateGroupRequestContext;
@@ -65,6 +68,34 @@ import com.pingidentity.sdk.provision.users.response.UsersResponseContextImpl;
  * This class is an example of an identity store provisioner used to provision and deprovision groups and users to an
  * external store. It uses an in-memory cache to store users and groups that get created. And it supports the option of
  * deleting or disabling users on delete.
+ *
+ * The users and groups are stored as immutable {@link AttributeRecord}s, copied from the attribute maps of the
+ * requests. An update stores a new record, so readers never lock and never see a partly updated user or group, and the
+ * attribute maps returned by the plugin are copies that callers may change freely.
+ *
+ * The attributes of the users and groups are indexed as they are stored, so that readUsers and readGroups evaluate the
+ * SCIM filter of the request against the index instead of returning every user or group. A filter such as
+ * {@code userName eq "jdoe"} becomes a single hash lookup.
+ *
+ * User names are unique, compared without regard to case as SCIM requires. A separate index from each user name to the
+ * user holding it lets createUser and updateUser detect a conflict without scanning every user. In "disable user on
+ * delete" mode a disabled user gives up its name, so that a new user may be created with it.
+ *
+ * The members of the groups are kept apart from their other attributes, with a reverse index of the groups each user
+ * or group is a member of. Members can be added to or removed from a group with {@link #addGroupMembers} and
+ * {@link #removeGroupMembers} without replacing the rest, and permanently deleting a user removes it from only the
+ * groups it is a member of.
+ *
+ * Changes can also be applied in batches with {@link #applyBatch}, which applies each operation as the corresponding
+ * single-resource method does but updates the attribute indexes once for the whole batch.
+ *
+ * Every create, update, disable and delete of a user or group is recorded in a bounded journal with a sequence number,
+ * so that an outbound sync can read only the changes since it last synchronized with {@link #getChangesSince} rather
+ * than reading and comparing every user and group.
+ *
+ * Each operation is recorded as one structured line in the audit log category
+ * com.pingidentity.identitystoreprovisioners.sample.audit at INFO. The attributes of the users and groups involved are
+ * recorded at DEBUG, for listings only for a sample of the users or groups returned.
  */
 public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerWithFiltering
 {
@@ -97,17 +128,53 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     // Static "Group not found" exception message.
     private static final String GROUP_NOT_FOUND = "Group not found";
 
+    // The number of the most recent changes held by the change journal, and the most changes returned at once.
+    private static final int JOURNAL_CAPACITY = 100000;
+    private static final int MAX_CHANGES_PER_READ = 1000;
+
+    // The most operations of a batch applied in one hold of the batch lock. Single operations waiting for the lock
+    // get in between these chunks rather than waiting for the whole batch.
+    private static final int BATCH_CHUNK_SIZE = 1000;
+
     // The PluginDescriptor that defines this plugin.
     private final IdentityStoreProvisionerDescriptor descriptor;
 
     // Runtime value of the delete/disable radio option in the plugin Admin UI.
     private boolean permanentlyDeleteUser;
 
+    // The structured audit stream of the provisioning operations.
+    private final ProvisioningAuditLog audit = new ProvisioningAuditLog();
+
     // For this sample implementation, the userCache models a user Identity Store in memory.
-    private final ConcurrentHashMap<String, AttributeMap> userCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AttributeRecord> userCache = new ConcurrentHashMap<>();
 
     // The groupCache models a group Identity Store in memory.
-    private final ConcurrentHashMap<String, AttributeMap> groupCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AttributeRecord> groupCache = new ConcurrentHashMap<>();
+
+    // The indexes of the user and group attributes, used to evaluate SCIM filters. They are kept in step with the
+    // caches by storeResource and removeResource.
+    private final AttributeIndex userIndex = new AttributeIndex();
+    private final AttributeIndex groupIndex = new AttributeIndex();
+
+    // The members of each group, and the groups each user or group is a member of. Group members are kept here
+    // rather than in the attributes of the groups in the groupCache, and added to them when a group is returned.
+    private final MembershipIndex membershipIndex = new MembershipIndex();
+
+    // Guards the indexes while applyBatch defers their maintenance. Single operations share the read lock, as they
+    // keep the caches and indexes in step one resource at a time, while applyBatch holds the write lock for each chunk
+    // of a batch. The lock is fair, so single operations that queued during a chunk go ahead of the next one.
+    private final ReentrantReadWriteLock batchLock = new ReentrantReadWriteLock(true);
+
+    // Select the sorted pages of users and groups returned by readUsers and readGroups.
+    private final ResourcePager userPager = new ResourcePager(userCache, userIndex);
+    private final ResourcePager groupPager = new ResourcePager(groupCache, groupIndex);
+
+    // The journal of the changes to the users and groups, appended to by storeResource and removeResource.
+    private final ChangeJournal journal = new ChangeJournal(JOURNAL_CAPACITY);
+
+    // The unique index of lower case user names to the users holding them, used to detect conflicting user names. It
+    // is kept in step with the userCache by claimUserName, disableUserName and releaseUserName.
+    private final ConcurrentHashMap<String, UserNameEntry> userNameIndex = new ConcurrentHashMap<>();
 
     /**
      * Creates a new sample identity store provisioner and initialize its GUI descriptor.
@@ -178,11 +245,14 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     {
         AttributeMap attributeMap = createRequestCtx.getUserAttributes();
 
-        // verify we don't already have this user
-        checkForConflict(attributeMap);
+        // generate a unique id so we can simulate a provisioning event
+        String id = generateId();
+
+        // verify we don't already have this user, and reserve the username for the new one. Retrieve the username
+        // from the attributes sent in the create request since it's a required attribute for SCIM. We know if we got
+        // to this portion of the code then it's included.
+        claimUserName(attributeMap.getSingleValue(USERNAME), id, isActive(attributeMap));
 
-        // generate a random id so we can simulate a provisioning event
-        String id = getRandomIntAsString();
         attributeMap.put(Constants.ID, id);
 
         // set the required timestamps
@@ -191,25 +261,10 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         attributeMap.put(Constants.WHEN_CHANGED, now);
 
         // store the user in memory
-        userCache.put(id, attributeMap);
-        log.info("Created User: " + id);
-        log.info("CreateUser Entity ID: " + createRequestCtx.getEntityId());
-        log.info("Attributes:");
-        for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-        {
-        	if (e.getValue().getValue() != null) 
-        	{
-        		log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-        	}
-        	else  if (e.getValue().getObjectValue() != null) 
-        	{
-    			log.info(String.format("%s => (Object)", e.getKey()));
-        		for (Object o : e.getValue().getAllObjectValues()) {
-        			log.info(String.format("%s", o.toString()));
-        		}
-        	}
-        }
-        
+        storeResource(BatchOperation.ResourceType.USER, ResourceChange.Type.CREATE, id, AttributeRecord.of(attributeMap));
+        audit.event("createUser", "id", id, "entityId", createRequestCtx.getEntityId());
+        audit.resource("createUser", id, attributeMap);
+
         // Send back the response
         return new UserResponseContextImpl(attributeMap);
     }
@@ -217,11 +272,7 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     @Override
     public UsersResponseContextImpl readUsers(ReadUsersRequestContext readRequestCtx) throws IdentityStoreException
     {
-    	log.info("SCIM Filter: " + readRequestCtx.getFilter());
-    	log.info("Sort By: " + readRequestCtx.getSortBy());
-    	log.info("Sort Order: " + readRequestCtx.getSortOrder());
-    	log.info("Pagination Start Index: " + readRequestCtx.getStartIndex());
-    	log.info("Pagination Count: " + readRequestCtx.getCount());
+        long start = System.nanoTime();
 
     	/*
     	 * readRequestCtx can optionally contain a filter. This filter specifies the search criteria for resources
@@ -229,136 +280,39 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     	 */
     	
     	/*
-    	 * Generate a list of all users
+    	 * Parse the filter, and use the index of user attributes to find the users that may match it. Without a
+    	 * filter, or with one the index can not narrow down, every user is a candidate.
     	 */
-        AttributeMap attributeMap = null;
-    	List<AttributeMap> responseMap = new ArrayList<>();
+        ScimFilter filter = parseFilter(readRequestCtx.getFilter(), readRequestCtx.getSCIMTargetToSourceAttributeMapping());
+        Set<String> candidateIds = filter != null ? filter.candidates(userIndex) : null;
 
-        for (String id : userCache.keySet()) {
-            if (permanentlyDeleteUser || isActive(id))
-            {
-                attributeMap = userCache.get(id);
-    
-                responseMap.add(attributeMap);
-                
-                // Print out some info to show the user attributes for testing.
-                log.info("Read User: " + id);
-                log.info("Entity ID: " + readRequestCtx.getEntityId());
-                log.info("Attributes:");
-                for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-                {
-                	if (e.getValue().getValue() != null) 
-                	{
-                		log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-                	}
-                	else  if (e.getValue().getObjectValue() != null) 
-                	{
-                		log.info(String.format("%s => (Object) %s", e.getKey(), e.getValue().getObjectValue().toString()));
-                	}
-                }
-                
-            }
-            else
-            {
-                // Since we're in "disable user on delete" mode and the user is inactive (disabled)
-                // the SCIM spec says to return a 404 in this case as though the user doesn't exist.
-        		log.info(String.format("%s: %s", id, USER_NOT_FOUND));
-            }
-        }        
-    	
-    	/*
-    	 * Parse the filter, and filter the results accordingly
-    	 * 
-         * There are many ways to parse the SCIM filter, but the easiest way is to use 3rd party
-         * tools. PingDirectory provides one solution for parsing the filter into an object structure
-         * as follows. Add the PingDirectory SCIM dependency and uncomment the following code.
-         */
-        //		if (! StringUtils.isEmpty(readRequestCtx.getFilter())) {
-        //    		FilterParser filterParser = new FilterParser(scimFilter, "urn:scim:schemas:core:1.0");
-        //    		SCIMFilter scimFilter = filterParser.parse();
-        //		}		
-        
-        // Sorting
-        
-        if (StringUtils.isNotEmpty(readRequestCtx.getSortBy()))
-        {
-            String sortByParam = readRequestCtx.getSortBy();
-            String sortOrder = readRequestCtx.getSortOrder();
-            
-            // Get the target to source attribute mapping
-            AttributeValue sortByAttrValue = readRequestCtx.getSCIMTargetToSourceAttributeMapping().get(sortByParam);
-            String sortBy = "";
-            if (sortByAttrValue != null)
-            {
-                sortBy = sortByAttrValue.getValue();
-            }
-            
-            sortAttributeMaps(responseMap, sortBy, sortOrder);
-        }
-        
-        // Pagination
-        
-        if (readRequestCtx.getStartIndex() > 0 && readRequestCtx.getCount() > 0)
-        {
-            int startIndex = readRequestCtx.getStartIndex();
-            int count = readRequestCtx.getCount();
-            
-            List<AttributeMap> paginatedList = paginateList(responseMap, startIndex, count);
-                       
-            return new UsersResponseContextImpl(paginatedList);
-        }
-                
-        return new UsersResponseContextImpl(responseMap);
-    }
+        // If we're in "disable user on delete" mode and the user is inactive (disabled), the SCIM spec says to leave
+        // them out as though the user doesn't exist.
+        Predicate<AttributeRecord> include = attributeRecord -> (filter == null || filter.matches(attributeRecord))
+                && (permanentlyDeleteUser || isActive(attributeRecord));
 
-    private List<AttributeMap> paginateList(List<AttributeMap> responseMap, int startIndex, int count)
-    {
-        List<AttributeMap> paginatedList = new ArrayList<>();
-        startIndex = startIndex < 0 ? 1 : startIndex;
-        count = count < 1 ? 1 : count;
-        
-        if (startIndex > responseMap.size())
-        {
-            return new ArrayList<AttributeMap>();
-        }
-        
-        ListIterator<AttributeMap> iter = responseMap.listIterator(startIndex - 1);
-        
-        int counter = 1;
-        while (iter.hasNext() && counter <= count)
+        // Sort and paginate
+        List<AttributeRecord> page = userPager.getPage(getQuery("users", readRequestCtx), candidateIds, include,
+                getSortBy(readRequestCtx), "descending".equals(readRequestCtx.getSortOrder()),
+                readRequestCtx.getStartIndex(), readRequestCtx.getCount());
+
+        List<AttributeMap> responseMap = new ArrayList<>(page.size());
+        for (AttributeRecord attributeRecord : page)
         {
-            paginatedList.add(iter.next());
-            counter++;
+            responseMap.add(attributeRecord.toAttributeMap());
+
+            // Record a sample of the user attributes for testing.
+            audit.sampledResource("readUsers", attributeRecord.getSingleValue(Constants.ID), attributeRecord);
         }
-        return paginatedList;
-    }
 
-    private void sortAttributeMaps(List<AttributeMap> responseMap, String sortBy, String sortOrder)
-    {
-        Comparator<AttributeMap> comparatorAscending = new Comparator<AttributeMap>() 
-        {
-            public int compare(AttributeMap c1, AttributeMap c2) 
-            {
-                String c1Value = c1.get(sortBy).getValue();
-                String c2Value = c2.get(sortBy).getValue();
-                return c1Value.compareToIgnoreCase(c2Value);
-            }
-        };
-        
-        Comparator<AttributeMap> comparatorDescending = new Comparator<AttributeMap>() 
-        {
-            public int compare(AttributeMap c1, AttributeMap c2) 
-            {
-                String c1Value = c1.get(sortBy).getValue();
-                String c2Value = c2.get(sortBy).getValue();
-                return c1Value.compareToIgnoreCase(c2Value) * -1;
-            }
-        };
+        audit.event("readUsers", "entityId", readRequestCtx.getEntityId(), "filter", readRequestCtx.getFilter(),
+                    "sortBy", readRequestCtx.getSortBy(), "sortOrder", readRequestCtx.getSortOrder(),
+                    "startIndex", readRequestCtx.getStartIndex(), "count", readRequestCtx.getCount(),
+                    "returned", responseMap.size(), "elapsedMillis", (System.nanoTime() - start) / 1000000);
 
-        Comparator<AttributeMap> comparator = "descending".equals(sortOrder) ? comparatorDescending : comparatorAscending ;
-        Collections.sort(responseMap, comparator);
+        return new UsersResponseContextImpl(responseMap);
     }
-    
+
     @Override
     public UserResponseContextImpl readUser(ReadUserRequestContext readRequestCtx) throws IdentityStoreException
     {
@@ -369,23 +323,11 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         {
             if (permanentlyDeleteUser || isActive(id))
             {
-                attributeMap = userCache.get(id);
+                attributeMap = userCache.get(id).toAttributeMap();
 
-                // Print out some info to show the user attributes for testing.
-                log.info("Read User: " + id);
-                log.info("Entity ID: " + readRequestCtx.getEntityId());
-                log.info("Attributes:");
-                for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-                {
-                	if (e.getValue().getValue() != null) 
-                	{
-                		log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-                	}
-                	else  if (e.getValue().getObjectValue() != null) 
-                	{
-                		log.info(String.format("%s => (Object) %s", e.getKey(), e.getValue().getObjectValue().toString()));
-                	}
-                }
+                // Record some info to show the user attributes for testing.
+                audit.event("readUser", "id", id, "entityId", readRequestCtx.getEntityId());
+                audit.resource("readUser", id, attributeMap);
             }
             else
             {
@@ -413,23 +355,29 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         {
             if (permanentlyDeleteUser || isActive(id))
             {
-                // Print out some info.
-                log.info("Update User: " + id);
-                log.info("Entity ID: " + updateRequestCtx.getEntityId());
-
-                AttributeMap existingAttributeMap = userCache.get(id);
+                AttributeRecord existingAttributeRecord = userCache.get(id);
                 AttributeMap attributeMap = updateRequestCtx.getUserAttributes();
 
+                // verify the username isn't held by another user, and move it over if it was changed
+                String userName = attributeMap.getSingleValue(USERNAME);
+                String previousUserName = existingAttributeRecord.getSingleValue(USERNAME);
+                claimUserName(userName, id, isActive(attributeMap));
+
                 // set whenChanged to now
                 AttributeValue now = AttrValueSupport.make(new Date());
                 attributeMap.put(Constants.WHEN_CHANGED, now);
 
                 // set whenCreated to the original value in the map
-                attributeMap.put(Constants.WHEN_CREATED, existingAttributeMap.get(Constants.WHEN_CREATED));
+                attributeMap.put(Constants.WHEN_CREATED, existingAttributeRecord.get(Constants.WHEN_CREATED));
                 attributeMap.put(Constants.ID, id);
 
                 // set the new one
-                userCache.replace(id, attributeMap);
+                storeResource(BatchOperation.ResourceType.USER, ResourceChange.Type.UPDATE, id, AttributeRecord.of(attributeMap));
+                if (!normalizeUserName(previousUserName).equals(normalizeUserName(userName)))
+                {
+                    releaseUserName(previousUserName, id);
+                }
+                audit.event("updateUser", "id", id, "entityId", updateRequestCtx.getEntityId());
                 updatedAttributeMap = attributeMap;
             }
             else
@@ -458,19 +406,25 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
             // Found an existing user - do we disable or delete?
             if (permanentlyDeleteUser)
             {
-                userCache.remove(id);
-                log.info("Deleted User: " + id);
-                log.info("Entity ID: " + deleteRequestCtx.getEntityId());
+                AttributeRecord attributeRecord = removeResource(BatchOperation.ResourceType.USER, id);
+                if (attributeRecord != null)
+                {
+                    releaseUserName(attributeRecord.getSingleValue(USERNAME), id);
+                }
+                // The groups the user was in lose a member, so they change as well
+                membershipIndex.removeMember(id).forEach(this::touchGroup);
+                audit.event("deleteUser", "id", id, "entityId", deleteRequestCtx.getEntityId());
             }
             else
             {
                 if (isActive(id))
                 {
                     // we're not in permanentlyDeleteUser mode and they're active so just disable them
-                    AttributeMap attributeMap = userCache.get(id);
-                    attributeMap.put(ACTIVE, new AttributeValue(Boolean.toString(false)));
-                    log.info("Disabled User: " + id);
-                    log.info("Entity ID: " + deleteRequestCtx.getEntityId());
+                    AttributeValue inactive = new AttributeValue(Boolean.toString(false));
+                    AttributeRecord attributeRecord = userCache.get(id).with(ACTIVE, inactive);
+                    storeResource(BatchOperation.ResourceType.USER, ResourceChange.Type.DISABLE, id, attributeRecord);
+                    disableUserName(attributeRecord.getSingleValue(USERNAME), id);
+                    audit.event("disableUser", "id", id, "entityId", deleteRequestCtx.getEntityId());
                 }
                 else
                 {
@@ -495,16 +449,11 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         String id = readRequestCtx.getGroupId();
         if (groupCache.containsKey(id))
         {
-            attributeMap = groupCache.get(id);
+            attributeMap = withMembers(id, groupCache.get(id));
 
-            // Print out some info to show the group attributes for testing.
-            log.info("Read Group: " + id);
-            log.info("Entity ID: " + readRequestCtx.getEntityId());
-            log.info("Attributes:");
-            for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-            {
-                log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-            }
+            // Record some info to show the group attributes for testing.
+            audit.event("readGroup", "id", id, "entityId", readRequestCtx.getEntityId());
+            audit.resource("readGroup", id, attributeMap);
         }
         else
         {
@@ -519,12 +468,7 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     @Override
     public GroupsResponseContext readGroups(ReadGroupsRequestContext readRequestCtx) throws IdentityStoreException
     {
-    	log.info("SCIM Filter: " + readRequestCtx.getFilter());
-        log.info("Sort By: " + readRequestCtx.getSortBy());
-        log.info("Sort Order: " + readRequestCtx.getSortOrder());
-        log.info("Pagination Start Index: " + readRequestCtx.getStartIndex());
-        log.info("Pagination Count: " + readRequestCtx.getCount());
-
+        long start = System.nanoTime();
 
     	/*
     	 * readRequestCtx can optionally contain a filter. This filter specifies the search criteria for resources
@@ -532,68 +476,33 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
     	 */
     	
     	/*
-    	 * Generate a list of all groups
+    	 * Parse the filter, and use the index of group attributes to find the groups that may match it.
     	 */
-        AttributeMap attributeMap = null;
-    	List<AttributeMap> responseMap = new ArrayList<>();
+        ScimFilter filter = parseFilter(readRequestCtx.getFilter(), readRequestCtx.getSCIMTargetToSourceAttributeMapping());
+        Set<String> candidateIds = filter != null ? filter.candidates(groupIndex) : null;
+        Predicate<AttributeRecord> include = attributeRecord -> filter == null || filter.matches(attributeRecord);
 
-        for (String id : groupCache.keySet()) {
-            attributeMap = groupCache.get(id);
+        // Sort and paginate
+        List<AttributeRecord> page = groupPager.getPage(getQuery("groups", readRequestCtx), candidateIds, include,
+                getSortBy(readRequestCtx), "descending".equals(readRequestCtx.getSortOrder()),
+                readRequestCtx.getStartIndex(), readRequestCtx.getCount());
 
+        List<AttributeMap> responseMap = new ArrayList<>(page.size());
+        for (AttributeRecord attributeRecord : page)
+        {
+            String id = attributeRecord.getSingleValue(Constants.ID);
+            AttributeMap attributeMap = withMembers(id, attributeRecord);
             responseMap.add(attributeMap);
 
-            // Print out some info to show the group attributes for testing.
-            log.info("Read Group: " + id);
-            log.info("Entity ID: " + readRequestCtx.getEntityId());
-            log.info("Attributes:");
-            for (Map.Entry<String, AttributeValue> e : attributeMap.entrySet())
-            {
-                log.info(String.format("%s => %s", e.getKey(), e.getValue().getValue()));
-            }
-        }        
-    	
-    	/*
-    	 * Parse the filter, and filter the results accordingly
-    	 * 
-         * There are many ways to parse the SCIM filter, but the easiest way is to use 3rd party
-         * tools. PingDirectory provides one solution for parsing the filter into an object structure
-         * as follows. 
-         */
-        //		if (! StringUtils.isEmpty(readRequestCtx.getFilter())) {
-        //    		FilterParser filterParser = new FilterParser(scimFilter, coreSchema);
-        //    		SCIMFilter scimFilter = filterParser.parse();
-        //		}		
-        
-        // Sorting
-        
-        if (StringUtils.isNotEmpty(readRequestCtx.getSortBy()))
-        {
-            String sortByParam = readRequestCtx.getSortBy();
-            String sortOrder = readRequestCtx.getSortOrder();
-            
-            // Get the target to source attribute mapping
-            AttributeValue sortByAttrValue = readRequestCtx.getSCIMTargetToSourceAttributeMapping().get(sortByParam);
-            String sortBy = "";
-            if (sortByAttrValue != null)
-            {
-                sortBy = sortByAttrValue.getValue();
-            }
-            
-            sortAttributeMaps(responseMap, sortBy, sortOrder);
-        }        
-        
-        // Pagination
-        
-        if (readRequestCtx.getStartIndex() > 0 && readRequestCtx.getCount() > 0)
-        {
-            int startIndex = readRequestCtx.getStartIndex();
-            int count = readRequestCtx.getCount();
-            
-            List<AttributeMap> paginatedList = paginateList(responseMap, startIndex, count);
-                       
-            return new GroupsResponseContextImpl(paginatedList);
+            // Record a sample of the group attributes for testing.
+            audit.sampledResource("readGroups", id, attributeMap);
         }
-    	
+
+        audit.event("readGroups", "entityId", readRequestCtx.getEntityId(), "filter", readRequestCtx.getFilter(),
+                    "sortBy", readRequestCtx.getSortBy(), "sortOrder", readRequestCtx.getSortOrder(),
+                    "startIndex", readRequestCtx.getStartIndex(), "count", readRequestCtx.getCount(),
+                    "returned", responseMap.size(), "elapsedMillis", (System.nanoTime() - start) / 1000000);
+
         return new GroupsResponseContextImpl(responseMap);
     }
 
@@ -604,9 +513,9 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         String id = deleteRequestCtx.getGroupId();
         if (groupCache.containsKey(id))
         {
-            groupCache.remove(id);
-            log.info("Deleted Group: " + id);
-            log.info("Entity ID: " + deleteRequestCtx.getEntityId());
+            removeResource(BatchOperation.ResourceType.GROUP, id);
+            membershipIndex.removeGroup(id).forEach(this::touchGroup);
+            audit.event("deleteGroup", "id", id, "entityId", deleteRequestCtx.getEntityId());
         }
         else
         {
@@ -623,47 +532,41 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         String id = updateRequestContext.getGroupId();
         if (groupCache.containsKey(id))
         {
-            AttributeMap existingAttributeMap = groupCache.get(id);
+            AttributeRecord existingAttributeRecord = groupCache.get(id);
             AttributeMap attributeMap = updateRequestContext.getGroupAttributes();
             String name = getGroupName(attributeMap);
 
-            // Print out some info.
-            log.info("Update Group: " + id);
-            log.info("Group Name: " + name);
-            log.info("Entity ID: " + updateRequestContext.getEntityId());
-
+            // Record some info.
+            audit.event("updateGroup", "id", id, "name", name, "entityId", updateRequestContext.getEntityId());
 
             // set whenChanged to now
             AttributeValue now = AttrValueSupport.make(new Date());
             attributeMap.put(Constants.WHEN_CHANGED, now);
 
             // set whenCreated to the original value in the map
-            attributeMap.put(Constants.WHEN_CREATED, existingAttributeMap.get(Constants.WHEN_CREATED));
+            attributeMap.put(Constants.WHEN_CREATED, existingAttributeRecord.get(Constants.WHEN_CREATED));
             attributeMap.put(Constants.ID, id);
 
-            // set the new one
-            groupCache.replace(id, attributeMap);
+            // set the new one, and update the membership index with only the members that changed
+            List<MemberAttribute> members = getMembers(attributeMap);
+            membershipIndex.setMembers(id, members);
+            storeResource(BatchOperation.ResourceType.GROUP, ResourceChange.Type.UPDATE, id, withoutMembers(attributeMap));
             updatedAttributeMap = attributeMap;
-        }
-        else
-        {
-            // couldn't find the group in memory
-            throw new NotFoundException(GROUP_NOT_FOUND + ": " + id);
-        }
 
-        if (updateRequestContext.getGroupAttributes() != null)
-        {
-            AttributeValue membersAttribute = updateRequestContext.getGroupAttributes().get(IdentityStoreProvisionerDescriptor.DEFAULT_MEMBERS_ATTR_NAME);
             // handle members
-            if (membersAttribute != null && membersAttribute.getAllObjectValues() != null)
+            for (MemberAttribute member : members)
             {
-                for (Object o : membersAttribute.getAllObjectValues())
+                if (log.isDebugEnabled())
                 {
-                    MemberAttribute member = (MemberAttribute) o;
-                    log.info("Update Group '" + id + "' with member: " + member.getId());
+                    log.debug("Update Group '" + id + "' with member: " + member.getId());
                 }
             }
         }
+        else
+        {
+            // couldn't find the group in memory
+            throw new NotFoundException(GROUP_NOT_FOUND + ": " + id);
+        }
 
         return new GroupResponseContextImpl(updatedAttributeMap);
     }
@@ -673,7 +576,7 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
             throws IdentityStoreException
     {
         AttributeMap attributeMap = createRequestContext.getGroupAttributes();
-        String id = getRandomIntAsString();
+        String id = generateId();
         String name = getGroupName(attributeMap);
 
         attributeMap.put(Constants.ID, id);
@@ -683,29 +586,377 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         attributeMap.put(Constants.WHEN_CREATED, now);
         attributeMap.put(Constants.WHEN_CHANGED, now);
 
-        // store the group in memory
-        groupCache.put(id, attributeMap);
+        // store the group in memory, with its members in the membership index
+        List<MemberAttribute> members = getMembers(attributeMap);
+        membershipIndex.setMembers(id, members);
+        storeResource(BatchOperation.ResourceType.GROUP, ResourceChange.Type.CREATE, id, withoutMembers(attributeMap));
 
-        // print out some info
-        log.info("Created Group: " + id);
-        log.info("Group Name: " + name);
-        log.info("Entity ID: " + createRequestContext.getEntityId());
+        // record some info
+        audit.event("createGroup", "id", id, "name", name, "entityId", createRequestContext.getEntityId());
 
-        AttributeValue membersAttribute = createRequestContext.getGroupAttributes().get(IdentityStoreProvisionerDescriptor.DEFAULT_MEMBERS_ATTR_NAME);
-        if (membersAttribute != null && membersAttribute.getAllObjectValues() != null)
+        // handle members
+        for (MemberAttribute member : members)
         {
-            // handle members
-            if (membersAttribute != null)
+            if (log.isDebugEnabled())
+            {
+                log.debug("Create Group '" + id + "' with member: " + member.getId());
+            }
+        }
+
+        return new GroupResponseContextImpl(attributeMap);
+    }
+
+    /**
+     * Applies a batch of user and group operations in order, as a SCIM bulk request does. Each operation behaves as the
+     * corresponding single-resource method, such as createUser, and fails or succeeds on its own; a failed operation
+     * does not stop the ones after it.
+     *
+     * The operations are applied in chunks of up to {@value #BATCH_CHUNK_SIZE}. While a chunk is applied, single
+     * operations that change users or groups wait, for at most one chunk, and the attribute indexes are only updated
+     * once the chunk completes, so users and groups it changes may be missed by readUsers and readGroups filters until
+     * then. Single operations run between the chunks, so a batch is not isolated from the changes made alongside it.
+     *
+     * @param entityId
+     *            the entity ID of the partner the operations are applied for.
+     * @param operations
+     *            the operations to apply.
+     * @return the result of each operation, in the order of the operations.
+     */
+    public List<BatchResult> applyBatch(String entityId, List<BatchOperation> operations)
+    {
+        long start = System.nanoTime();
+        List<BatchResult> results = new ArrayList<>(operations.size());
+        int failed = 0;
+
+        for (int from = 0; from < operations.size(); from += BATCH_CHUNK_SIZE)
+        {
+            int to = Math.min(from + BATCH_CHUNK_SIZE, operations.size());
+            failed += applyChunk(entityId, operations.subList(from, to), results);
+        }
+
+        audit.event("applyBatch", "entityId", entityId, "operations", operations.size(), "failed", failed,
+                    "elapsedMillis", (System.nanoTime() - start) / 1000000);
+
+        return results;
+    }
+
+    /**
+     * Applies a chunk of a batch under the write lock of the batch lock, updating the indexes once at the end, and adds
+     * the result of each operation to the results.
+     *
+     * @return the number of operations that failed.
+     */
+    private int applyChunk(String entityId, List<BatchOperation> operations, List<BatchResult> results)
+    {
+        int failed = 0;
+
+        batchLock.writeLock().lock();
+        try
+        {
+            userIndex.deferChanges();
+            groupIndex.deferChanges();
+
+            for (BatchOperation operation : operations)
             {
-                for (Object o : membersAttribute.getAllObjectValues())
+                try
+                {
+                    results.add(new BatchResult(operation, applyOperation(entityId, operation), null));
+                }
+                catch (IdentityStoreException e)
                 {
-                    MemberAttribute member = (MemberAttribute) o;
-                    log.info("Create Group '" + id + "' with member: " + member.getId());
+                    results.add(new BatchResult(operation, null, e));
+                    failed++;
                 }
             }
         }
+        finally
+        {
+            userIndex.applyDeferredChanges();
+            groupIndex.applyDeferredChanges();
+            batchLock.writeLock().unlock();
 
-        return new GroupResponseContextImpl(attributeMap);
+            // The indexes only reflect the chunk from here on, so no page cursor saved during it may be resumed
+            userPager.resourceChanged();
+            groupPager.resourceChanged();
+        }
+
+        return failed;
+    }
+
+    private AttributeMap applyOperation(String entityId, BatchOperation operation) throws IdentityStoreException
+    {
+        return operation.getResourceType() == BatchOperation.ResourceType.USER ?
+                applyUserOperation(entityId, operation) : applyGroupOperation(entityId, operation);
+    }
+
+    private AttributeMap applyUserOperation(String entityId, BatchOperation operation) throws IdentityStoreException
+    {
+        String id = operation.getId();
+        AttributeMap attributes = operation.getAttributes();
+
+        switch (operation.getMethod())
+        {
+            case CREATE:
+                return createUser(new CreateUserRequestContext()
+                {
+                    @Override
+                    public AttributeMap getUserAttributes()
+                    {
+                        return attributes;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                }).getUserAttributes();
+
+            case UPDATE:
+                return updateUser(new UpdateUserRequestContext()
+                {
+                    @Override
+                    public AttributeMap getUserAttributes()
+                    {
+                        return attributes;
+                    }
+
+                    @Override
+                    public String getUserId()
+                    {
+                        return id;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                }).getUserAttributes();
+
+            default:
+                deleteUser(new DeleteUserRequestContext()
+                {
+                    @Override
+                    public String getUserId()
+                    {
+                        return id;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                });
+                return null;
+        }
+    }
+
+    private AttributeMap applyGroupOperation(String entityId, BatchOperation operation) throws IdentityStoreException
+    {
+        String id = operation.getId();
+        AttributeMap attributes = operation.getAttributes();
+
+        switch (operation.getMethod())
+        {
+            case CREATE:
+                return createGroup(new CreateGroupRequestContext()
+                {
+                    @Override
+                    public AttributeMap getGroupAttributes()
+                    {
+                        return attributes;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                }).getGroupAttributes();
+
+            case UPDATE:
+                return updateGroup(new UpdateGroupRequestContext()
+                {
+                    @Override
+                    public AttributeMap getGroupAttributes()
+                    {
+                        return attributes;
+                    }
+
+                    @Override
+                    public String getGroupId()
+                    {
+                        return id;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                }).getGroupAttributes();
+
+            default:
+                deleteGroup(new DeleteGroupRequestContext()
+                {
+                    @Override
+                    public String getGroupId()
+                    {
+                        return id;
+                    }
+
+                    @Override
+                    public String getEntityId()
+                    {
+                        return entityId;
+                    }
+                });
+                return null;
+        }
+    }
+
+    /**
+     * Adds members to a group, keeping its existing members. Only the added members are visited, however large the
+     * group is.
+     *
+     * @param groupId
+     *            the ID of the group.
+     * @param members
+     *            the users and groups to add to the group.
+     * @throws NotFoundException
+     *             if there is no group with the ID.
+     */
+    public void addGroupMembers(String groupId, Collection<MemberAttribute> members) throws NotFoundException
+    {
+        if (!groupCache.containsKey(groupId) || !membershipIndex.addMembers(groupId, members))
+        {
+            throw new NotFoundException(GROUP_NOT_FOUND + ": " + groupId);
+        }
+
+        touchGroup(groupId);
+        audit.event("addGroupMembers", "id", groupId, "members", members.size());
+    }
+
+    /**
+     * Removes members from a group, keeping its other members. Only the removed members are visited, however large the
+     * group is.
+     *
+     * @param groupId
+     *            the ID of the group.
+     * @param memberIds
+     *            the IDs of the users and groups to remove from the group.
+     * @throws NotFoundException
+     *             if there is no group with the ID.
+     */
+    public void removeGroupMembers(String groupId, Collection<String> memberIds) throws NotFoundException
+    {
+        if (!groupCache.containsKey(groupId) || !membershipIndex.removeMembers(groupId, memberIds))
+        {
+            throw new NotFoundException(GROUP_NOT_FOUND + ": " + groupId);
+        }
+
+        touchGroup(groupId);
+        audit.event("removeGroupMembers", "id", groupId, "members", memberIds.size());
+    }
+
+    /**
+     * Returns the changes to the users and groups made after the change with the given sequence number, oldest first.
+     * Only the most recent changes are kept; if those after the sequence number are no longer held, no changes are
+     * returned and the result requires a resync.
+     *
+     * To synchronize from scratch, take {@link #getLastChangeSequence()}, read every user and group, and then read the
+     * changes since the sequence number taken. A change may then repeat what was read, and since each change carries
+     * the whole of the user or group it is safe to apply again.
+     *
+     * @param sequence
+     *            the sequence number of the last change already read, or 0 to read from the first change.
+     * @param maxChanges
+     *            the most changes to return, capped at 1000.
+     * @return the changes, and the sequence number to read the following ones from.
+     */
+    public ResourceChanges getChangesSince(long sequence, int maxChanges)
+    {
+        int limit = Math.max(0, Math.min(maxChanges, MAX_CHANGES_PER_READ));
+        ResourceChanges changes = journal.getChangesSince(sequence, limit);
+        audit.event("getChangesSince", "sequence", sequence, "changes", changes.getChanges().size(), "resyncRequired",
+                    changes.isResyncRequired());
+        return changes;
+    }
+
+    /**
+     * Returns the sequence number of the last change to the users and groups, or 0 if there have been none.
+     */
+    public long getLastChangeSequence()
+    {
+        return journal.getLastSequence();
+    }
+
+    /**
+     * Returns the IDs of the groups a user or group is directly a member of.
+     */
+    public Set<String> getGroupIdsForMember(String memberId)
+    {
+        return membershipIndex.getGroupIds(memberId);
+    }
+
+    /**
+     * Sets whenChanged of a group whose members have changed to now.
+     */
+    private void touchGroup(String groupId)
+    {
+        AttributeRecord existingAttributeRecord = groupCache.get(groupId);
+        if (existingAttributeRecord != null)
+        {
+            AttributeRecord attributeRecord = existingAttributeRecord.with(Constants.WHEN_CHANGED,
+                                                                         AttrValueSupport.make(new Date()));
+            storeResource(BatchOperation.ResourceType.GROUP, ResourceChange.Type.UPDATE, groupId, attributeRecord);
+        }
+    }
+
+    private static List<MemberAttribute> getMembers(AttributeMap attributeMap)
+    {
+        List<MemberAttribute> members = new ArrayList<>();
+        AttributeValue membersAttribute = attributeMap.get(IdentityStoreProvisionerDescriptor.DEFAULT_MEMBERS_ATTR_NAME);
+        if (membersAttribute != null && membersAttribute.getAllObjectValues() != null)
+        {
+            for (Object o : membersAttribute.getAllObjectValues())
+            {
+                members.add((MemberAttribute) o);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Returns a record of the attributes of a group without its members, to be stored in the groupCache.
+     */
+    private static AttributeRecord withoutMembers(AttributeMap attributeMap)
+    {
+        return AttributeRecord.of(attributeMap).without(IdentityStoreProvisionerDescriptor.DEFAULT_MEMBERS_ATTR_NAME);
+    }
+
+    /**
+     * Returns a copy of the stored attributes of a group with its members from the membership index added.
+     */
+    private AttributeMap withMembers(String groupId, AttributeRecord attributeRecord)
+    {
+        AttributeMap attributeMap = attributeRecord.toAttributeMap();
+        List<MemberAttribute> members = membershipIndex.getMembers(groupId);
+        if (members.isEmpty())
+        {
+            return attributeMap;
+        }
+
+        List<String> memberIds = new ArrayList<>(members.size());
+        for (MemberAttribute member : members)
+        {
+            memberIds.add(member.getId());
+        }
+
+        attributeMap.put(IdentityStoreProvisionerDescriptor.DEFAULT_MEMBERS_ATTR_NAME, new AttributeValue(memberIds, members));
+        return attributeMap;
     }
 
     private String getGroupName(AttributeMap attributeMap)
@@ -736,43 +987,248 @@ public class SampleIdentityStoreProvisioner implements IdentityStoreProvisionerW
         this.permanentlyDeleteUser = permanentlyDeleteUser;
     }
 
-    private void checkForConflict(AttributeMap attributeMap) throws ConflictException
+    public int getAuditSampleRate()
+    {
+        return audit.getResourceSampleRate();
+    }
+
+    /**
+     * Sets how many of the users or groups returned by readUsers and readGroups are passed over for each one whose
+     * attributes are written to the audit stream at DEBUG.
+     */
+    public void setAuditSampleRate(int auditSampleRate)
+    {
+        audit.setResourceSampleRate(auditSampleRate);
+    }
+
+    /**
+     * Reserves the username for the user with the given ID, or throws a ConflictException if another user holds it.
+     * An active user holds its username, and so does a disabled one in "permanentlyDeleteUser mode". However, if
+     * we're in "disable mode" and the existing user is inactive then allow another user to be created with the same
+     * username but a different id; the new user then takes over the username.
+     */
+    private void claimUserName(String userName, String id, boolean active) throws ConflictException
     {
-        // Retrieve the username from the attributes sent in the create request since it's a required attribute for
-        // SCIM. We know if we got to this portion of the code then it's included.
-        String newUserNameValue = attributeMap.getSingleValue(USERNAME);
+        if (userName == null)
+        {
+            return;
+        }
 
-        // loop through the existing Identity Store (in memory for this sample)
-        for (AttributeMap existingAttributeMap : userCache.values())
+        UserNameEntry claimed = new UserNameEntry(id, active);
+        UserNameEntry holder = userNameIndex.compute(normalizeUserName(userName), (key, existing) ->
+                existing == null || existing.id.equals(id) || !(permanentlyDeleteUser || existing.active) ?
+                        claimed : existing);
+        if (holder != claimed)
         {
-            if (existingAttributeMap.get(USERNAME) != null
-            		&& newUserNameValue != null
-                    && newUserNameValue.equals(existingAttributeMap.get(USERNAME).getValue()))
-            {
-                // The username matches an existing one in memory. If we're in "permanentlyDeleteUser mode"
-                // or if the existing user is active then throw a ConflictException. However, if we're in
-                // "disable mode" and the user is inactive then allow them to create another user with the
-                // same username but a different id.
-                if (permanentlyDeleteUser || "true".equalsIgnoreCase(existingAttributeMap.getSingleValue(ACTIVE)))
-                {
-                    // if we find a match and they're active then throw a ConflictException
-                    throw new ConflictException("User already exists: " + newUserNameValue);
-                }
-            }
+            throw new ConflictException("User already exists: " + userName);
         }
     }
 
+    /**
+     * Records that the user with the given ID, which holds the username, has been disabled.
+     */
+    private void disableUserName(String userName, String id)
+    {
+        if (userName != null)
+        {
+            userNameIndex.computeIfPresent(normalizeUserName(userName), (key, existing) ->
+                    existing.id.equals(id) ? new UserNameEntry(id, false) : existing);
+        }
+    }
+
+    /**
+     * Frees the username if it is held by the user with the given ID.
+     */
+    private void releaseUserName(String userName, String id)
+    {
+        if (userName != null)
+        {
+            userNameIndex.computeIfPresent(normalizeUserName(userName), (key, existing) ->
+                    existing.id.equals(id) ? null : existing);
+        }
+    }
+
+    private static String normalizeUserName(String userName)
+    {
+        return userName != null ? userName.toLowerCase(Locale.ROOT) : "";
+    }
+
     private boolean isActive(String id)
     {
         // Determine whether the user is active.
-        AttributeMap attributeMap = userCache.get(id);
+        return isActive(userCache.get(id));
+    }
+
+    private static boolean isActive(AttributeMap attributeMap)
+    {
         return "true".equalsIgnoreCase(attributeMap.getSingleValue(ACTIVE));
     }
 
-    private static String getRandomIntAsString()
+    private static boolean isActive(AttributeRecord attributeRecord)
     {
-        Random rand = new Random();
-        int randomNumber = rand.nextInt(100000) + 1;
-        return Integer.toString(randomNumber);
+        return "true".equalsIgnoreCase(attributeRecord.getSingleValue(ACTIVE));
+    }
+
+    /**
+     * Parses the SCIM filter of a read request, resolving the SCIM attribute names it uses through the target to
+     * source attribute mapping of the request. Returns null if the request has no filter.
+     */
+    private static ScimFilter parseFilter(String filter, AttributeMap scimTargetToSourceAttributeMapping)
+            throws FilterException
+    {
+        if (StringUtils.isBlank(filter))
+        {
+            return null;
+        }
+
+        return ScimFilter.parse(filter, scimAttributeName ->
+        {
+            AttributeValue sourceAttribute = scimTargetToSourceAttributeMapping != null ?
+                    ScimFilter.getAttribute(scimTargetToSourceAttributeMapping, scimAttributeName) : null;
+            return sourceAttribute != null ? sourceAttribute.getValue() : null;
+        });
+    }
+
+    /**
+     * Returns the source attribute to sort the response to a read request by, or null if it is not to be sorted.
+     */
+    private static String getSortBy(ReadUsersRequestContext readRequestCtx)
+    {
+        return getSortBy(readRequestCtx.getSortBy(), readRequestCtx.getSCIMTargetToSourceAttributeMapping());
+    }
+
+    private static String getSortBy(ReadGroupsRequestContext readRequestCtx)
+    {
+        return getSortBy(readRequestCtx.getSortBy(), readRequestCtx.getSCIMTargetToSourceAttributeMapping());
+    }
+
+    private static String getSortBy(String sortByParam, AttributeMap scimTargetToSourceAttributeMapping)
+    {
+        if (StringUtils.isEmpty(sortByParam))
+        {
+            return null;
+        }
+
+        // Get the target to source attribute mapping
+        AttributeValue sortByAttrValue = scimTargetToSourceAttributeMapping != null ?
+                scimTargetToSourceAttributeMapping.get(sortByParam) : null;
+        String sortBy = sortByAttrValue != null ? sortByAttrValue.getValue() : null;
+        return sortBy != null ? sortBy : "";
+    }
+
+    /**
+     * Identifies the query a read request is part of, so that the request for its next page can resume from where
+     * the previous page ended.
+     */
+    private static String getQuery(String resourceType, ReadUsersRequestContext readRequestCtx)
+    {
+        return getQuery(resourceType, readRequestCtx.getEntityId(), readRequestCtx.getFilter(),
+                        readRequestCtx.getSortBy(), readRequestCtx.getSortOrder());
+    }
+
+    private static String getQuery(String resourceType, ReadGroupsRequestContext readRequestCtx)
+    {
+        return getQuery(resourceType, readRequestCtx.getEntityId(), readRequestCtx.getFilter(),
+                        readRequestCtx.getSortBy(), readRequestCtx.getSortOrder());
+    }
+
+    private static String getQuery(String resourceType, String... parts)
+    {
+        return resourceType + '\n' + String.join("\n", parts);
+    }
+
+    /**
+     * Stores a user or group, replacing any with the same ID, updates the index of its attributes to match and records
+     * the change in the journal. The cache, the index and the journal change together for each ID, so the changes to
+     * a user or group are journaled in the order they were made.
+     */
+    private void storeResource(BatchOperation.ResourceType resourceType, ResourceChange.Type changeType, String id,
+                               AttributeRecord attributeRecord)
+    {
+        AttributeIndex index = getIndex(resourceType);
+        batchLock.readLock().lock();
+        try
+        {
+            getCache(resourceType).compute(id, (key, previous) ->
+            {
+                if (previous != null)
+                {
+                    index.remove(key, previous);
+                }
+                index.add(key, attributeRecord);
+                journal.append(resourceType, changeType, key, attributeRecord);
+                return attributeRecord;
+            });
+        }
+        finally
+        {
+            batchLock.readLock().unlock();
+        }
+        getPager(resourceType).resourceChanged();
+    }
+
+    /**
+     * Removes a user or group and its attributes from the index and records the delete in the journal, returning the
+     * attributes it had or null if there was none with the ID.
+     */
+    private AttributeRecord removeResource(BatchOperation.ResourceType resourceType, String id)
+    {
+        AttributeIndex index = getIndex(resourceType);
+        AttributeRecord[] removed = new AttributeRecord[1];
+        batchLock.readLock().lock();
+        try
+        {
+            getCache(resourceType).computeIfPresent(id, (key, previous) ->
+            {
+                index.remove(key, previous);
+                journal.append(resourceType, ResourceChange.Type.DELETE, key, null);
+                removed[0] = previous;
+                return null;
+            });
+        }
+        finally
+        {
+            batchLock.readLock().unlock();
+        }
+        if (removed[0] != null)
+        {
+            getPager(resourceType).resourceChanged();
+        }
+        return removed[0];
+    }
+
+    private ConcurrentHashMap<String, AttributeRecord> getCache(BatchOperation.ResourceType resourceType)
+    {
+        return resourceType == BatchOperation.ResourceType.USER ? userCache : groupCache;
+    }
+
+    private ResourcePager getPager(BatchOperation.ResourceType resourceType)
+    {
+        return resourceType == BatchOperation.ResourceType.USER ? userPager : groupPager;
+    }
+
+    private AttributeIndex getIndex(BatchOperation.ResourceType resourceType)
+    {
+        return resourceType == BatchOperation.ResourceType.USER ? userIndex : groupIndex;
+    }
+
+    private static String generateId()
+    {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * The user holding a username, and whether that user is active.
+     */
+    private static class UserNameEntry
+    {
+        private final String id;
+        private final boolean active;
+
+        private UserNameEntry(String id, boolean active)
+        {
+            this.id = id;
+            this.active = active;
+        }
     }
 }
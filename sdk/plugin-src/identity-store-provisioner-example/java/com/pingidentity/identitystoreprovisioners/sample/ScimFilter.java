@@ -0,0 +1,564 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+package com.pingidentity.identitystoreprovisioners.sample;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.sourceid.saml20.adapter.attribute.AttributeValue;
+
+import com.pingidentity.sdk.provision.exception.FilterException;
+
+/**
+ * A parsed SCIM filter, such as {@code userName eq "jdoe" and (title co "manager" or not (active pr))}.
+ *
+ * The filter supports the comparison operators eq, ne, co, sw, ew, gt, ge, lt and le, the presence operator pr, the
+ * logical operators and, or and not, and grouping with parentheses. Attribute names are resolved to the names of the
+ * source attributes when the filter is parsed. Values are compared as case-insensitive strings, and a multi-valued
+ * attribute matches if any of its values does.
+ *
+ * Besides matching a single resource, a filter can use an {@link AttributeIndex} to find the resources that may match
+ * it without visiting every resource. An "and" uses the most selective of its indexed operands and leaves the others to
+ * be checked on the candidates it returns.
+ */
+abstract class ScimFilter
+{
+    /**
+     * Returns whether the resource with the given attributes matches the filter.
+     */
+    abstract boolean matches(AttributeRecord attributes);
+
+    /**
+     * Returns an upper bound on the number of resources in the index that match the filter, or
+     * {@link Long#MAX_VALUE} if the index cannot narrow down the resources that do.
+     */
+    abstract long estimate(AttributeIndex index);
+
+    /**
+     * Returns the IDs of the resources in the index that may match the filter, or null if every resource must be
+     * checked. The candidates still have to be checked with {@link #matches}.
+     */
+    abstract Set<String> candidates(AttributeIndex index);
+
+    /**
+     * Parses a SCIM filter.
+     *
+     * @param filter
+     *            the filter expression.
+     * @param attributeResolver
+     *            maps the SCIM attribute names used in the filter to the names of the source attributes.
+     * @throws FilterException
+     *             if the filter is not a valid SCIM filter.
+     */
+    static ScimFilter parse(String filter, UnaryOperator<String> attributeResolver) throws FilterException
+    {
+        Parser parser = new Parser(filter, attributeResolver);
+        ScimFilter parsed = parser.parseOr();
+        if (parser.peek() != null)
+        {
+            throw new FilterException("Unexpected '" + parser.peek() + "' in filter: " + filter);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the attribute of the given name, ignoring case.
+     */
+    static AttributeValue getAttribute(Map<String, AttributeValue> attributes, String name)
+    {
+        AttributeValue attributeValue = attributes.get(name);
+        if (attributeValue != null)
+        {
+            return attributeValue;
+        }
+
+        for (Map.Entry<String, AttributeValue> e : attributes.entrySet())
+        {
+            if (e.getKey().equalsIgnoreCase(name))
+            {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static class And extends ScimFilter
+    {
+        private final List<ScimFilter> operands;
+
+        private And(List<ScimFilter> operands)
+        {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(AttributeRecord attributes)
+        {
+            for (ScimFilter operand : operands)
+            {
+                if (!operand.matches(attributes))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long estimate(AttributeIndex index)
+        {
+            long estimate = Long.MAX_VALUE;
+            for (ScimFilter operand : operands)
+            {
+                estimate = Math.min(estimate, operand.estimate(index));
+            }
+            return estimate;
+        }
+
+        @Override
+        Set<String> candidates(AttributeIndex index)
+        {
+            ScimFilter mostSelective = null;
+            long bestEstimate = Long.MAX_VALUE;
+            for (ScimFilter operand : operands)
+            {
+                long estimate = operand.estimate(index);
+                if (estimate < bestEstimate)
+                {
+                    mostSelective = operand;
+                    bestEstimate = estimate;
+                }
+            }
+            return mostSelective != null ? mostSelective.candidates(index) : null;
+        }
+    }
+
+    private static class Or extends ScimFilter
+    {
+        private final List<ScimFilter> operands;
+
+        private Or(List<ScimFilter> operands)
+        {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(AttributeRecord attributes)
+        {
+            for (ScimFilter operand : operands)
+            {
+                if (operand.matches(attributes))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        long estimate(AttributeIndex index)
+        {
+            long estimate = 0;
+            for (ScimFilter operand : operands)
+            {
+                long operandEstimate = operand.estimate(index);
+                if (operandEstimate == Long.MAX_VALUE)
+                {
+                    return Long.MAX_VALUE;
+                }
+                estimate += operandEstimate;
+            }
+            return estimate;
+        }
+
+        @Override
+        Set<String> candidates(AttributeIndex index)
+        {
+            Set<String> candidates = new HashSet<>();
+            for (ScimFilter operand : operands)
+            {
+                Set<String> operandCandidates = operand.candidates(index);
+                if (operandCandidates == null)
+                {
+                    return null;
+                }
+                candidates.addAll(operandCandidates);
+            }
+            return candidates;
+        }
+    }
+
+    private static class Not extends ScimFilter
+    {
+        private final ScimFilter operand;
+
+        private Not(ScimFilter operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean matches(AttributeRecord attributes)
+        {
+            return !operand.matches(attributes);
+        }
+
+        @Override
+        long estimate(AttributeIndex index)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        Set<String> candidates(AttributeIndex index)
+        {
+            return null;
+        }
+    }
+
+    private static class Present extends ScimFilter
+    {
+        private final String attributeName;
+
+        private Present(String attributeName)
+        {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        boolean matches(AttributeRecord attributes)
+        {
+            return attributes.isPresentIgnoreCase(attributeName);
+        }
+
+        @Override
+        long estimate(AttributeIndex index)
+        {
+            return index.getPresentIds(attributeName).size();
+        }
+
+        @Override
+        Set<String> candidates(AttributeIndex index)
+        {
+            return index.getPresentIds(attributeName);
+        }
+    }
+
+    private static class Comparison extends ScimFilter
+    {
+        private final String attributeName;
+        private final String operator;
+        private final String value;
+        private final Predicate<String> valueTest;
+
+        private Comparison(String attributeName, String operator, String value)
+        {
+            this.attributeName = attributeName;
+            this.operator = operator;
+            this.value = value;
+            valueTest = candidate -> candidate != null && matches(candidate.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        boolean matches(AttributeRecord attributes)
+        {
+            return attributes.anyValueIgnoreCase(attributeName, valueTest);
+        }
+
+        private boolean matches(String candidate)
+        {
+            switch (operator)
+            {
+                case "eq":
+                    return candidate.equals(value);
+                case "co":
+                    return candidate.contains(value);
+                case "sw":
+                    return candidate.startsWith(value);
+                case "ew":
+                    return candidate.endsWith(value);
+                case "gt":
+                    return candidate.compareTo(value) > 0;
+                case "ge":
+                    return candidate.compareTo(value) >= 0;
+                case "lt":
+                    return candidate.compareTo(value) < 0;
+                case "le":
+                    return candidate.compareTo(value) <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        long estimate(AttributeIndex index)
+        {
+            switch (operator)
+            {
+                case "eq":
+                    return index.getIds(attributeName, value).size();
+                case "co":
+                case "ew":
+                    // Found by scanning the distinct values of the attribute, so bounded by the resources that have it
+                    return index.getPresentIds(attributeName).size();
+                default:
+                    return index.countIdsInRange(attributeName, operator, value);
+            }
+        }
+
+        @Override
+        Set<String> candidates(AttributeIndex index)
+        {
+            switch (operator)
+            {
+                case "eq":
+                    return index.getIds(attributeName, value);
+                case "co":
+                case "ew":
+                    return index.getIdsMatching(attributeName, this::matches);
+                default:
+                    return index.getIdsInRange(attributeName, operator, value);
+            }
+        }
+    }
+
+    /**
+     * A recursive descent parser over the tokens of a filter: parentheses, quoted strings and words.
+     */
+    private static class Parser
+    {
+        /**
+         * The deepest nesting of parentheses accepted, so that a filter can not exhaust the stack of the parser or of
+         * the filter it builds.
+         */
+        private static final int MAX_DEPTH = 100;
+
+        private final String filter;
+        private final UnaryOperator<String> attributeResolver;
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+        private int depth;
+
+        private Parser(String filter, UnaryOperator<String> attributeResolver) throws FilterException
+        {
+            this.filter = filter;
+            this.attributeResolver = attributeResolver;
+            tokenize();
+        }
+
+        private void tokenize() throws FilterException
+        {
+            int i = 0;
+            while (i < filter.length())
+            {
+                char c = filter.charAt(i);
+                if (Character.isWhitespace(c))
+                {
+                    i++;
+                }
+                else if (c == '(' || c == ')')
+                {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                }
+                else if (c == '"')
+                {
+                    // Quoted strings keep their opening quote, so they are never mistaken for keywords
+                    StringBuilder token = new StringBuilder("\"");
+                    i++;
+                    while (i < filter.length() && filter.charAt(i) != '"')
+                    {
+                        if (filter.charAt(i) == '\\' && i + 1 < filter.length())
+                        {
+                            i++;
+                        }
+                        token.append(filter.charAt(i++));
+                    }
+                    if (i == filter.length())
+                    {
+                        throw new FilterException("Unterminated string in filter: " + filter);
+                    }
+                    tokens.add(token.toString());
+                    i++;
+                }
+                else
+                {
+                    int start = i;
+                    while (i < filter.length() && !Character.isWhitespace(filter.charAt(i)) &&
+                           "()\"".indexOf(filter.charAt(i)) < 0)
+                    {
+                        i++;
+                    }
+                    tokens.add(filter.substring(start, i));
+                }
+            }
+        }
+
+        private String peek()
+        {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private String next() throws FilterException
+        {
+            if (position == tokens.size())
+            {
+                throw new FilterException("Unexpected end of filter: " + filter);
+            }
+            return tokens.get(position++);
+        }
+
+        private boolean nextIs(String keyword)
+        {
+            if (keyword.equalsIgnoreCase(peek()))
+            {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) throws FilterException
+        {
+            String actual = next();
+            if (!token.equals(actual))
+            {
+                throw new FilterException("Expected '" + token + "' but found '" + actual + "' in filter: " + filter);
+            }
+        }
+
+        private ScimFilter parseOr() throws FilterException
+        {
+            List<ScimFilter> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (nextIs("or"))
+            {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        private ScimFilter parseAnd() throws FilterException
+        {
+            List<ScimFilter> operands = new ArrayList<>();
+            operands.add(parseUnary());
+            while (nextIs("and"))
+            {
+                operands.add(parseUnary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        private ScimFilter parseUnary() throws FilterException
+        {
+            if (nextIs("not"))
+            {
+                return new Not(parseGroup());
+            }
+
+            if ("(".equals(peek()))
+            {
+                return parseGroup();
+            }
+
+            return parseAttributeExpression();
+        }
+
+        /**
+         * Parses a filter in parentheses.
+         */
+        private ScimFilter parseGroup() throws FilterException
+        {
+            expect("(");
+            if (++depth > MAX_DEPTH)
+            {
+                throw new FilterException("Filter nested more than " + MAX_DEPTH + " levels deep: " + filter);
+            }
+            ScimFilter grouped = parseOr();
+            expect(")");
+            depth--;
+            return grouped;
+        }
+
+        private ScimFilter parseAttributeExpression() throws FilterException
+        {
+            String attributePath = next();
+            if (attributePath.startsWith("\"") || attributePath.equals(")"))
+            {
+                throw new FilterException("Expected an attribute but found '" + attributePath + "' in filter: " + filter);
+            }
+            String attributeName = resolve(attributePath);
+
+            String operator = next().toLowerCase(Locale.ROOT);
+            if (operator.equals("pr"))
+            {
+                return new Present(attributeName);
+            }
+
+            String value = next();
+            boolean quoted = value.startsWith("\"");
+            value = quoted ? value.substring(1) : value;
+            if (!quoted && value.equals("null"))
+            {
+                // Comparing to null tests whether the attribute is absent
+                if (operator.equals("eq") || operator.equals("ne"))
+                {
+                    ScimFilter present = new Present(attributeName);
+                    return operator.equals("eq") ? new Not(present) : present;
+                }
+                throw new FilterException("Operator '" + operator + "' can not compare to null in filter: " + filter);
+            }
+            value = value.toLowerCase(Locale.ROOT);
+
+            switch (operator)
+            {
+                case "ne":
+                    return new Not(new Comparison(attributeName, "eq", value));
+                case "eq":
+                case "co":
+                case "sw":
+                case "ew":
+                case "gt":
+                case "ge":
+                case "lt":
+                case "le":
+                    return new Comparison(attributeName, operator, value);
+                default:
+                    throw new FilterException("Unsupported operator '" + operator + "' in filter: " + filter);
+            }
+        }
+
+        /**
+         * Resolves an attribute path, which may be qualified by its schema URN, to the lower case name of the source
+         * attribute.
+         */
+        private String resolve(String attributePath)
+        {
+            String resolved = attributeResolver.apply(attributePath);
+            if (resolved == null && attributePath.startsWith("urn:"))
+            {
+                resolved = attributeResolver.apply(attributePath.substring(attributePath.lastIndexOf(':') + 1));
+            }
+            return (resolved != null ? resolved : attributePath).toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.password.credential.validator;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * A salted PBKDF2-HMAC-SHA256 hash of a password.
+ *
+ * A hash is written as {@code $pbkdf2-sha256$<iterations>$<salt>$<hash>}, with the salt and hash in base64 using '.'
+ * in place of '+' and without padding. This is the format of the pbkdf2_sha256 hashes of the Python passlib library,
+ * so a user file can be prepared with it.
+ */
+final class PasswordHash
+{
+    /**
+     * The number of iterations of new hashes.
+     */
+    static final int DEFAULT_ITERATIONS = 210000;
+
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash)
+    {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Hashes a password with a new random salt.
+     */
+    static PasswordHash create(String password)
+    {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return new PasswordHash(DEFAULT_ITERATIONS, salt, derive(password, salt, DEFAULT_ITERATIONS, HASH_LENGTH));
+    }
+
+    /**
+     * Parses a hash written by {@link #toString()}.
+     *
+     * @throws IllegalArgumentException
+     *             if the value is not a hash in that format.
+     */
+    static PasswordHash parse(String value)
+    {
+        if (!value.startsWith(PREFIX))
+        {
+            throw new IllegalArgumentException("Not a " + PREFIX + " password hash");
+        }
+
+        String[] parts = value.substring(PREFIX.length()).split("\\$", -1);
+        if (parts.length != 3)
+        {
+            throw new IllegalArgumentException("Malformed " + PREFIX + " password hash");
+        }
+
+        int iterations = Integer.parseInt(parts[0]);
+        byte[] salt = decode(parts[1]);
+        byte[] hash = decode(parts[2]);
+        if (iterations < 1 || hash.length == 0)
+        {
+            throw new IllegalArgumentException("Malformed " + PREFIX + " password hash");
+        }
+        return new PasswordHash(iterations, salt, hash);
+    }
+
+    /**
+     * Returns true if the password is the one hashed. The hashes are compared in constant time.
+     */
+    boolean matches(String password)
+    {
+        return MessageDigest.isEqual(hash, derive(password, salt, iterations, hash.length));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof PasswordHash))
+        {
+            return false;
+        }
+        PasswordHash other = (PasswordHash) o;
+        return iterations == other.iterations && Arrays.equals(salt, other.salt) && Arrays.equals(hash, other.hash);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(hash);
+    }
+
+    @Override
+    public String toString()
+    {
+        return PREFIX + iterations + "$" + encode(salt) + "$" + encode(hash);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int length)
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try
+        {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Unable to hash password with " + ALGORITHM, e);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    private static String encode(byte[] bytes)
+    {
+        return Base64.getEncoder().withoutPadding().encodeToString(bytes).replace('+', '.');
+    }
+
+    private static byte[] decode(String value)
+    {
+        return Base64.getDecoder().decode(value.replace('.', '+'));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.password.credential.validator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.pingidentity.sdk.password.PasswordValidationException;
+
+/**
+ * Verifies passwords against their hashes on a pool of threads of its own, so that the request threads of the server
+ * are never all busy hashing passwords.
+ *
+ * At most a fixed number of passwords are hashed at once and a bounded number wait their turn; a verification that
+ * finds the queue full is rejected at once rather than waiting. Each verification has a deadline: the caller stops
+ * waiting when it passes, and a verification still queued by then is dropped without hashing. A rejected or late
+ * verification fails with a PasswordValidationException, so that during a burst of logins some fail quickly as a
+ * system error while the rest are verified in time.
+ *
+ * The threads are created as needed and stop after a minute without work.
+ */
+class PasswordVerifier
+{
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAccumulator maxHashNanos = new LongAccumulator(Long::max, 0);
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+
+    /**
+     * @param parallelism
+     *            the most passwords hashed at once.
+     * @param queueLimit
+     *            the most verifications waiting for a thread.
+     * @param timeoutMillis
+     *            how long a verification may take, including the time it waits for a thread.
+     */
+    PasswordVerifier(int parallelism, int queueLimit, long timeoutMillis)
+    {
+        this.timeoutMillis = timeoutMillis;
+        executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(queueLimit), runnable -> {
+            Thread thread = new Thread(runnable, "password-verifier-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns true if the password is the one hashed.
+     *
+     * @throws PasswordValidationException
+     *             if too many verifications are waiting already, or the verification did not complete in time.
+     */
+    boolean verify(PasswordHash passwordHash, String password) throws PasswordValidationException
+    {
+        long submitted = System.nanoTime();
+        long deadline = submitted + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        FutureTask<Boolean> result = new FutureTask<>(() ->
+        {
+            long started = System.nanoTime();
+            dequeued.increment();
+            queueNanos.add(started - submitted);
+            if (started - deadline > 0)
+            {
+                return null;
+            }
+
+            boolean matches = passwordHash.matches(password);
+            long elapsed = System.nanoTime() - started;
+            hashNanos.add(elapsed);
+            maxHashNanos.accumulate(elapsed);
+            verified.increment();
+            return matches;
+        });
+
+        try
+        {
+            executor.execute(result);
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejected.increment();
+            throw new PasswordValidationException("Too many password verifications in progress.");
+        }
+
+        try
+        {
+            Boolean matches = result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (matches == null)
+            {
+                throw new TimeoutException();
+            }
+            return matches;
+        }
+        catch (TimeoutException e)
+        {
+            // if it is still queued, make room for another
+            result.cancel(false);
+            executor.remove(result);
+            timedOut.increment();
+            throw new PasswordValidationException("Password verification timed out.");
+        }
+        catch (InterruptedException e)
+        {
+            result.cancel(false);
+            executor.remove(result);
+            Thread.currentThread().interrupt();
+            throw new PasswordValidationException("Interrupted while verifying password.", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new PasswordValidationException("Unable to verify password.", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of verifications waiting for a thread.
+     */
+    int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of passwords being hashed.
+     */
+    int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    long getVerifiedCount()
+    {
+        return verified.sum();
+    }
+
+    long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    long getTimedOutCount()
+    {
+        return timedOut.sum();
+    }
+
+    /**
+     * Returns the mean time taken to hash a password, in microseconds.
+     */
+    long getMeanHashMicros()
+    {
+        long count = verified.sum();
+        return count > 0 ? TimeUnit.NANOSECONDS.toMicros(hashNanos.sum() / count) : 0;
+    }
+
+    /**
+     * Returns the longest time taken to hash a password, in microseconds.
+     */
+    long getMaxHashMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(maxHashNanos.get());
+    }
+
+    /**
+     * Returns the mean time verifications waited for a thread, in microseconds.
+     */
+    long getMeanQueueMicros()
+    {
+        long count = dequeued.sum();
+        return count > 0 ? TimeUnit.NANOSECONDS.toMicros(queueNanos.sum() / count) : 0;
+    }
+}
@@ -16,11 +16,18 @@
 
 package com.pingidentity.password.credential.validator;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import com.pingidentity.sdk.password.RecoverableUsername;
 import com.pingidentity.sdk.password.UsernameRecoveryException;
@@ -28,6 +35,7 @@ import org.sourceid.saml20.adapter.attribute.AttributeValue;
 import org.sourceid.saml20.adapter.conf.Configuration;
 import org.sourceid.saml20.adapter.gui.CheckBoxFieldDescriptor;
 import org.sourceid.saml20.adapter.gui.TextFieldDescriptor;
+import org.sourceid.saml20.adapter.gui.validation.impl.IntegerValidator;
 import org.sourceid.saml20.adapter.gui.validation.impl.RequiredFieldValidator;
 import org.sourceid.util.log.AttributeMap;
 
@@ -42,10 +50,24 @@ import com.pingidentity.sdk.password.PasswordValidationException;
 import com.pingidentity.sdk.password.ResettablePasswordCredential;
 
 /**
- * A password credential validator containing a single username and password pair.
+ * A password credential validator containing a single username and password pair, and optionally the users of a
+ * local user file.
  *
  * Not for actual deployments but useful for POCs and as an SDK example.
  *
+ * The user file holds one user per line, as {@code username:passwordHash:givenName:mail:phone:pingIdUsername:mailVerified}
+ * where only the username and password hash are required. The password hash is a salted PBKDF2 hash as described in
+ * {@link PasswordHash}. The users are loaded into an index keyed by username, so validating a credential costs a
+ * lookup and a single hash of the given password however many users there are, and the file is read again when it
+ * changes. The configured password is hashed as well, and no password is kept in clear text.
+ *
+ * Passwords are verified on a bounded pool of threads of the validator's own, as described in
+ * {@link PasswordVerifier}, so that a burst of logins cannot keep every request thread of the server busy hashing.
+ *
+ * The results of findUser and findUsersByMail, including that there is no such user, are cached for a short time, as
+ * the password reset and username recovery flows look up the same user several times. A cached result is dropped when
+ * the password of the user is changed or reset, and when the user file changes the user.
+ *
  * This sample also demonstrates how to implement a PCV that supports password change
  * and reset operations. Note that updates to the password value through non-admin
  * scenarios are not persisted to configuration or replicated in the cluster.
@@ -75,6 +97,17 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
     private static final String PINGID_USERNAME_DESC = "For password reset using PingID, provide the username as provisioned in PingID services.";
     private static final String MAIL_VERIFIED = "Mail Verified";
     private static final String MAIL_VERIFIED_DESC = "For password reset, account unlock and username recovery, has the email address been verified.";
+    private static final String USER_FILE = "User File";
+    private static final String USER_FILE_DESC = "Optionally, the path of a file of additional users, one per line as username:passwordHash:givenName:mail:phone:pingIdUsername:mailVerified.";
+    private static final String VERIFICATION_THREADS = "Verification Threads";
+    private static final String VERIFICATION_THREADS_DESC = "The most passwords verified at once.";
+    private static final String VERIFICATION_THREADS_DEFAULT = "4";
+    private static final String VERIFICATION_QUEUE_LIMIT = "Verification Queue Limit";
+    private static final String VERIFICATION_QUEUE_LIMIT_DESC = "The most password verifications waiting for a thread. Further logins are rejected at once until there is room.";
+    private static final String VERIFICATION_QUEUE_LIMIT_DEFAULT = "100";
+    private static final String VERIFICATION_TIMEOUT = "Verification Timeout";
+    private static final String VERIFICATION_TIMEOUT_DESC = "The most time in milliseconds a password verification may take, including the time it waits for a thread.";
+    private static final String VERIFICATION_TIMEOUT_DEFAULT = "5000";
 
     private static final String USERNAME_ATTRIBUTE = "username";
     private static final String NAME_ATTRIBUTE = "givenName";
@@ -86,8 +119,15 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
     // Minimum password length to demonstrate password policy enforcement
     private static final int MIN_PASSWORD_LENGTH = 6;
 
+    // How long the results of findUser and findUsersByMail are cached, and the most results cached of each
+    private static final long LOOKUP_CACHE_TTL_SECONDS = 30;
+    private static final int LOOKUP_CACHE_SIZE = 10000;
+
+    // Verified in place of the password hash of an unknown user, so that an unknown user takes as long to reject as
+    // a wrong password of a user with a hash of the default strength
+    private static final PasswordHash UNKNOWN_USER_HASH = PasswordHash.create("");
+
     String username = null;
-    String password = null;
     String name = null;
     String mail = null;
     String phone = null;
@@ -95,6 +135,23 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
 
     boolean mailVerified = false;
 
+    // The configured user and those of the user file
+    UserCredentialStore users = null;
+
+    // Verifies the passwords of the users off the request threads
+    PasswordVerifier verifier = null;
+
+    // The users found by findUser by lower case username and by findUsersByMail by lower case mail address. An empty
+    // result is cached as an empty Optional. The users are immutable; the attribute maps are built for each call.
+    private final Cache<String, Optional<UserCredential>> usersByUsername = CacheBuilder.newBuilder()
+            .maximumSize(LOOKUP_CACHE_SIZE)
+            .expireAfterWrite(LOOKUP_CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+    private final Cache<String, Optional<List<UserCredential>>> usersByMail = CacheBuilder.newBuilder()
+            .maximumSize(LOOKUP_CACHE_SIZE)
+            .expireAfterWrite(LOOKUP_CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
     /**
      * This method is called by the PingFederate server to push configuration values entered by the administrator via
      * the dynamically rendered GUI configuration screen in the PingFederate administration console. Your implementation
@@ -112,12 +169,26 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
     public void configure(Configuration configuration)
     {
         username = configuration.getFieldValue(USERNAME);
-        password = configuration.getFieldValue(PASSWORD);
         name = configuration.getFieldValue(NAME);
         mail = configuration.getFieldValue(MAIL);
         phone = configuration.getFieldValue(PHONE);
         pingIdUsername = configuration.getFieldValue(PINGID_USERNAME);
         mailVerified = configuration.getBooleanFieldValue(MAIL_VERIFIED);
+
+        String userFile = configuration.getFieldValue(USER_FILE);
+        UserCredential configuredUser = new UserCredential(username,
+                                                           PasswordHash.create(configuration.getFieldValue(PASSWORD)),
+                                                           name, mail, phone, pingIdUsername, mailVerified);
+        users = new UserCredentialStore(configuredUser,
+                                        userFile != null && !userFile.trim().isEmpty() ? Paths.get(userFile.trim()) : null,
+                                        (previous, current) -> {
+                                            invalidateLookups(previous);
+                                            invalidateLookups(current);
+                                        });
+
+        verifier = new PasswordVerifier(getIntFieldValue(configuration, VERIFICATION_THREADS, VERIFICATION_THREADS_DEFAULT),
+                                        getIntFieldValue(configuration, VERIFICATION_QUEUE_LIMIT, VERIFICATION_QUEUE_LIMIT_DEFAULT),
+                                        getIntFieldValue(configuration, VERIFICATION_TIMEOUT, VERIFICATION_TIMEOUT_DEFAULT));
     }
 
     /**
@@ -159,6 +230,27 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
         CheckBoxFieldDescriptor mailVerifiedFieldDescriptor = new CheckBoxFieldDescriptor(MAIL_VERIFIED, MAIL_VERIFIED_DESC);
         guiDescriptor.addField(mailVerifiedFieldDescriptor);
 
+        TextFieldDescriptor userFileFieldDescriptor = new TextFieldDescriptor(USER_FILE, USER_FILE_DESC);
+        guiDescriptor.addField(userFileFieldDescriptor);
+
+        TextFieldDescriptor verificationThreadsFieldDescriptor = new TextFieldDescriptor(VERIFICATION_THREADS, VERIFICATION_THREADS_DESC);
+        verificationThreadsFieldDescriptor.addValidator(requiredFieldValidator);
+        verificationThreadsFieldDescriptor.addValidator(new IntegerValidator(1, 256));
+        verificationThreadsFieldDescriptor.setDefaultValue(VERIFICATION_THREADS_DEFAULT);
+        guiDescriptor.addField(verificationThreadsFieldDescriptor);
+
+        TextFieldDescriptor verificationQueueLimitFieldDescriptor = new TextFieldDescriptor(VERIFICATION_QUEUE_LIMIT, VERIFICATION_QUEUE_LIMIT_DESC);
+        verificationQueueLimitFieldDescriptor.addValidator(requiredFieldValidator);
+        verificationQueueLimitFieldDescriptor.addValidator(new IntegerValidator(1, 100000));
+        verificationQueueLimitFieldDescriptor.setDefaultValue(VERIFICATION_QUEUE_LIMIT_DEFAULT);
+        guiDescriptor.addField(verificationQueueLimitFieldDescriptor);
+
+        TextFieldDescriptor verificationTimeoutFieldDescriptor = new TextFieldDescriptor(VERIFICATION_TIMEOUT, VERIFICATION_TIMEOUT_DESC);
+        verificationTimeoutFieldDescriptor.addValidator(requiredFieldValidator);
+        verificationTimeoutFieldDescriptor.addValidator(new IntegerValidator(1, 600000));
+        verificationTimeoutFieldDescriptor.setDefaultValue(VERIFICATION_TIMEOUT_DEFAULT);
+        guiDescriptor.addField(verificationTimeoutFieldDescriptor);
+
         // Build plugin descriptor
         PluginDescriptor pluginDescriptor = new PluginDescriptor(TYPE, this, guiDescriptor);
 
@@ -198,14 +290,19 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
             throw new PasswordValidationException("Unable to validate null credentials.");
         }
 
-        // Validate against the single set of credentials defined by configuration
-        if (this.username.equalsIgnoreCase(username) && this.password.equals(password))
+        // Validate against the configured user or a user of the user file
+        UserCredential user = users.get(username);
+        if (user == null || password == null)
+        {
+            verifier.verify(UNKNOWN_USER_HASH, password != null ? password : "");
+        }
+        else if (verifier.verify(user.getPasswordHash(), password))
         {
             attributeMap = new AttributeMap();
 
             attributeMap.put(USERNAME_ATTRIBUTE, new AttributeValue(username));
-            attributeMap.put(NAME_ATTRIBUTE, new AttributeValue(name));
-            attributeMap.put(MAIL_ATTRIBUTE, new AttributeValue(mail));
+            attributeMap.put(NAME_ATTRIBUTE, new AttributeValue(user.getName()));
+            attributeMap.put(MAIL_ATTRIBUTE, new AttributeValue(user.getMail()));
         }
 
         // If authentication failed - returns null (an empty map is also OK)
@@ -234,7 +331,14 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
             // Password policy violation, throw a recoverable exception
             throw new PasswordCredentialValidatorAuthnException(true, "Password is too short.");
         }
-        this.password = newPassword;
+
+        UserCredential user = users.get(username);
+        if (user == null || oldPassword == null || !verifier.verify(user.getPasswordHash(), oldPassword))
+        {
+            throw new PasswordCredentialValidatorAuthnException(false, "Invalid username or password.");
+        }
+        users.setPassword(username, PasswordHash.create(newPassword));
+        invalidateLookups(user);
 
         return new PasswordChangeResult();
     }
@@ -306,6 +410,8 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
      *
      * If the user is not found a {@link PasswordResetException} is thrown.
      *
+     * The user is cached for a short time, but a new map is returned on each call.
+     *
      * @param username the name of the user to find.
      * @return a map of user attributes
      * @throws PasswordResetException
@@ -313,18 +419,36 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
     @Override
     public AttributeMap	findUser(String username) throws PasswordResetException
     {
-        if (!this.username.equalsIgnoreCase(username))
+        if (username == null)
         {
             throw new PasswordResetException(true, "Username not found");
         }
 
+        String key = UserCredentialStore.normalize(username);
+        Optional<UserCredential> user = usersByUsername.getIfPresent(key);
+        if (user == null)
+        {
+            user = Optional.ofNullable(users.get(username));
+            usersByUsername.put(key, user);
+        }
+
+        if (!user.isPresent())
+        {
+            throw new PasswordResetException(true, "Username not found");
+        }
+
+        return toFoundUser(user.get());
+    }
+
+    private AttributeMap toFoundUser(UserCredential user)
+    {
         AttributeMap foundUser = new AttributeMap();
 
-        foundUser.put(NAME_ATTRIBUTE, name);
-        foundUser.put(MAIL_ATTRIBUTE, mail);
-        foundUser.put(PHONE_ATTRIBUTE, phone);
-        foundUser.put(PINGID_ATTRIBUTE, pingIdUsername);
-        foundUser.put(MAIL_VERIFIED_ATTRIBUTE, Boolean.toString(mailVerified));
+        foundUser.put(NAME_ATTRIBUTE, user.getName());
+        foundUser.put(MAIL_ATTRIBUTE, user.getMail());
+        foundUser.put(PHONE_ATTRIBUTE, user.getPhone());
+        foundUser.put(PINGID_ATTRIBUTE, user.getPingIdUsername());
+        foundUser.put(MAIL_VERIFIED_ATTRIBUTE, Boolean.toString(user.isMailVerified()));
 
         return foundUser;
     }
@@ -343,6 +467,8 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
      *
      * If the user is not found a {@link UsernameRecoveryException} is thrown.
      *
+     * The users are cached for a short time, but a new list of new maps is returned on each call.
+     *
      * @param mail the email address of the user to find.
      * @return a List of AttributeMaps. Each map corresponds to a found user account. Multiple accounts are possible as email addresses may not be unique.
      * @throws UsernameRecoveryException
@@ -350,16 +476,50 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
     @Override
     public List<AttributeMap> findUsersByMail(String mail) throws UsernameRecoveryException
     {
-        if(!this.mail.equalsIgnoreCase(mail))
+        if (mail == null)
+        {
+            throw new UsernameRecoveryException("Username not found");
+        }
+
+        String key = UserCredentialStore.normalize(mail);
+        Optional<List<UserCredential>> mailUsers = usersByMail.getIfPresent(key);
+        if (mailUsers == null)
+        {
+            List<UserCredential> found = users.getByMail(mail);
+            mailUsers = found.isEmpty() ? Optional.empty() : Optional.of(Collections.unmodifiableList(found));
+            usersByMail.put(key, mailUsers);
+        }
+
+        if (!mailUsers.isPresent())
         {
             throw new UsernameRecoveryException("Username not found");
         }
 
-        AttributeMap userAttributes = new AttributeMap();
-        userAttributes.put(getUsernameAttribute(), username);
-        userAttributes.put(getMailVerifiedAttribute(), Boolean.toString(mailVerified));
+        List<AttributeMap> foundUsers = new ArrayList<>(mailUsers.get().size());
+        for (UserCredential user : mailUsers.get())
+        {
+            AttributeMap userAttributes = new AttributeMap();
+            userAttributes.put(getUsernameAttribute(), user.getUsername());
+            userAttributes.put(getMailVerifiedAttribute(), Boolean.toString(user.isMailVerified()));
+            foundUsers.add(userAttributes);
+        }
 
-        return Collections.singletonList(userAttributes);
+        return foundUsers;
+    }
+
+    /**
+     * Drops the cached lookups of a user, by its username and by its mail address.
+     */
+    private void invalidateLookups(UserCredential user)
+    {
+        if (user != null)
+        {
+            usersByUsername.invalidate(UserCredentialStore.normalize(user.getUsername()));
+            if (user.getMail() != null)
+            {
+                usersByMail.invalidate(UserCredentialStore.normalize(user.getMail()));
+            }
+        }
     }
 
     /**
@@ -448,6 +608,67 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
         return supportsReset;
     }
 
+    /**
+     * Returns the number of password verifications waiting for a thread.
+     */
+    public int getVerificationQueueDepth()
+    {
+        return verifier.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of passwords being hashed.
+     */
+    public int getActiveVerificationCount()
+    {
+        return verifier.getActiveCount();
+    }
+
+    public long getVerifiedPasswordCount()
+    {
+        return verifier.getVerifiedCount();
+    }
+
+    /**
+     * Returns the number of password verifications rejected because too many were waiting already.
+     */
+    public long getRejectedVerificationCount()
+    {
+        return verifier.getRejectedCount();
+    }
+
+    /**
+     * Returns the number of password verifications that did not complete in time.
+     */
+    public long getTimedOutVerificationCount()
+    {
+        return verifier.getTimedOutCount();
+    }
+
+    /**
+     * Returns the mean time taken to hash a password, in microseconds.
+     */
+    public long getMeanPasswordHashMicros()
+    {
+        return verifier.getMeanHashMicros();
+    }
+
+    /**
+     * Returns the longest time taken to hash a password, in microseconds.
+     */
+    public long getMaxPasswordHashMicros()
+    {
+        return verifier.getMaxHashMicros();
+    }
+
+    /**
+     * Returns the mean time password verifications waited for a thread, in microseconds.
+     */
+    public long getMeanVerificationQueueMicros()
+    {
+        return verifier.getMeanQueueMicros();
+    }
+
     /**
      * Resets the password for the given user.
      * If there is an error setting the password due to a policy violation, a PasswordResetException is
@@ -468,6 +689,16 @@ public class SamplePasswordCredentialValidator implements PasswordCredentialVali
           throw new PasswordResetException(true, "Password is too short.");
       }
 
-      this.password = password;
+      if (!users.setPassword(username, PasswordHash.create(password)))
+      {
+          throw new PasswordResetException(true, "Username not found");
+      }
+      invalidateLookups(users.get(username));
+    }
+
+    private static int getIntFieldValue(Configuration configuration, String name, String defaultValue)
+    {
+        String value = configuration.getFieldValue(name);
+        return Integer.parseInt(value != null && !value.trim().isEmpty() ? value.trim() : defaultValue);
     }
 }
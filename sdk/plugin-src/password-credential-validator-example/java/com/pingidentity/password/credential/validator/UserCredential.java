@@ -0,0 +1,150 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.password.credential.validator;
+
+import java.util.Objects;
+
+/**
+ * A user of the validator: the username, the hash of the password, and the attributes used for password reset and
+ * username recovery. A user never changes once created; a password change creates a new one with
+ * {@link #withPassword}.
+ */
+final class UserCredential
+{
+    private final String username;
+    private final PasswordHash passwordHash;
+    private final String name;
+    private final String mail;
+    private final String phone;
+    private final String pingIdUsername;
+    private final boolean mailVerified;
+
+    // The user as it was loaded from the user file: this one, or the one it was derived from by password changes.
+    // Null if the user did not come from the user file.
+    private final UserCredential loaded;
+
+    UserCredential(String username, PasswordHash passwordHash, String name, String mail, String phone,
+                   String pingIdUsername, boolean mailVerified)
+    {
+        this(username, passwordHash, name, mail, phone, pingIdUsername, mailVerified, false, null);
+    }
+
+    private UserCredential(String username, PasswordHash passwordHash, String name, String mail, String phone,
+                           String pingIdUsername, boolean mailVerified, boolean fromFile, UserCredential loaded)
+    {
+        this.username = username;
+        this.passwordHash = passwordHash;
+        this.name = name;
+        this.mail = mail;
+        this.phone = phone;
+        this.pingIdUsername = pingIdUsername;
+        this.mailVerified = mailVerified;
+        this.loaded = fromFile ? this : loaded;
+    }
+
+    /**
+     * Parses a line of a user file, of the form {@code username:passwordHash[:givenName:mail:phone:pingIdUsername:
+     * mailVerified]}. Empty or missing attributes are null.
+     *
+     * @throws IllegalArgumentException
+     *             if the line has no username or no valid password hash.
+     */
+    static UserCredential parse(String line)
+    {
+        String[] fields = line.split(":", -1);
+        if (fields.length < 2 || fields[0].trim().isEmpty())
+        {
+            throw new IllegalArgumentException("Expected username:passwordHash");
+        }
+
+        return new UserCredential(fields[0].trim(), PasswordHash.parse(fields[1].trim()), field(fields, 2),
+                                  field(fields, 3), field(fields, 4), field(fields, 5),
+                                  Boolean.parseBoolean(field(fields, 6)), true, null);
+    }
+
+    /**
+     * Returns this user with a new password.
+     */
+    UserCredential withPassword(PasswordHash passwordHash)
+    {
+        return new UserCredential(username, passwordHash, name, mail, phone, pingIdUsername, mailVerified, false,
+                                  loaded);
+    }
+
+    /**
+     * Returns true if the user was loaded from the user file as the given one, whatever its password was changed to
+     * since.
+     */
+    boolean isLoadedAs(UserCredential user)
+    {
+        return loaded != null && loaded.sameAs(user);
+    }
+
+    boolean isLoaded()
+    {
+        return loaded != null;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    PasswordHash getPasswordHash()
+    {
+        return passwordHash;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    String getMail()
+    {
+        return mail;
+    }
+
+    String getPhone()
+    {
+        return phone;
+    }
+
+    String getPingIdUsername()
+    {
+        return pingIdUsername;
+    }
+
+    boolean isMailVerified()
+    {
+        return mailVerified;
+    }
+
+    private boolean sameAs(UserCredential other)
+    {
+        return username.equals(other.username) && passwordHash.equals(other.passwordHash)
+               && Objects.equals(name, other.name) && Objects.equals(mail, other.mail)
+               && Objects.equals(phone, other.phone) && Objects.equals(pingIdUsername, other.pingIdUsername)
+               && mailVerified == other.mailVerified;
+    }
+
+    private static String field(String[] fields, int i)
+    {
+        String value = i < fields.length ? fields[i].trim() : "";
+        return value.isEmpty() ? null : value;
+    }
+}
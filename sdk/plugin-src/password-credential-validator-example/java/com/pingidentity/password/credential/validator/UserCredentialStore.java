@@ -0,0 +1,332 @@
+/*
+ * **************************************************
+ *  Copyright (C) 2019 Ping Identity Corporation
+ *  All rights reserved.
+ *
+ *  The contents of this file are subject to the terms of the
+ *  Ping Identity Corporation SDK Developer Guide.
+ *
+ *  Ping Identity Corporation
+ *  1001 17th St Suite 100
+ *  Denver, CO 80202
+ *  303.468.2900
+ *  http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.password.credential.validator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The users of the validator, indexed by their username and by their mail address, both without regard to case.
+ *
+ * The users are the one configured in the administrative console and, optionally, those of a user file with one user
+ * per line as parsed by {@link UserCredential#parse}. Blank lines and lines starting with '#' are skipped. The
+ * configured user takes precedence over a user of the file with the same username.
+ *
+ * The user file is checked for changes every few seconds by a background thread. When it has changed it is read again
+ * on that thread, while lookups carry on with the users as they are; only the users that were added, changed or
+ * removed in the file are updated. A lookup is a plain map lookup and never waits for the file. A password changed
+ * through the validator is kept until the user's line in the file changes.
+ *
+ * A listener is told of every user added, changed or removed by reading the user file, so that anything derived from
+ * the users can be kept up to date. It is called on the background thread.
+ */
+class UserCredentialStore
+{
+    private static final Log log = LogFactory.getLog(UserCredentialStore.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 5000;
+
+    private final Map<String, UserCredential> users = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> usernamesByMail = new ConcurrentHashMap<>();
+    private final BiConsumer<UserCredential, UserCredential> changeListener;
+    private final String configuredUsername;
+    private final Path userFile;
+
+    // Only read and written by the constructor and then by the background thread
+    private FileTime lastModifiedTime;
+    private long lastSize = -1;
+
+    /**
+     * Creates a store of the configured user and, if the path is not null, the users of the user file. The file is
+     * read right away, and then checked for changes in the background.
+     *
+     * @param changeListener
+     *            called with the previous and the current user, either of which may be null, whenever reading the
+     *            user file adds, changes or removes a user.
+     */
+    UserCredentialStore(UserCredential configuredUser, Path userFile,
+                        BiConsumer<UserCredential, UserCredential> changeListener)
+    {
+        this.configuredUsername = normalize(configuredUser.getUsername());
+        this.userFile = userFile;
+        this.changeListener = changeListener;
+        users.put(configuredUsername, configuredUser);
+        indexMail(configuredUser);
+        if (userFile != null)
+        {
+            reload();
+
+            Thread thread = new Thread(new Checker(this), "user-file-checker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the user with the given username, compared without regard to case, or null if there is none.
+     */
+    UserCredential get(String username)
+    {
+        return username != null ? users.get(normalize(username)) : null;
+    }
+
+    /**
+     * Returns the users with the given mail address, compared without regard to case.
+     */
+    List<UserCredential> getByMail(String mail)
+    {
+        Set<String> usernames = mail != null ? usernamesByMail.get(normalize(mail)) : null;
+        if (usernames == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<UserCredential> found = new ArrayList<>(usernames.size());
+        for (String username : usernames)
+        {
+            UserCredential user = users.get(username);
+            if (user != null)
+            {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Sets the password of a user, returning false if there is no user with the username.
+     */
+    boolean setPassword(String username, PasswordHash passwordHash)
+    {
+        return username != null
+               && users.computeIfPresent(normalize(username), (key, user) -> user.withPassword(passwordHash)) != null;
+    }
+
+    int size()
+    {
+        return users.size();
+    }
+
+    /**
+     * Reads the user file again if it was modified since it was last read. Called by the background thread only.
+     */
+    private void reloadIfModified()
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(userFile, BasicFileAttributes.class);
+            if (!attributes.lastModifiedTime().equals(lastModifiedTime) || attributes.size() != lastSize)
+            {
+                reload();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to check user file " + userFile + " for changes: " + e);
+        }
+    }
+
+    /**
+     * Reads the user file, updating the users that were added, changed or removed since it was last read. If the
+     * file cannot be read the users are left as they are, and it is read again at the next check.
+     */
+    private void reload()
+    {
+        long start = System.currentTimeMillis();
+        Set<String> seen = new HashSet<>();
+        int changed = 0;
+        int lineNumber = 0;
+
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(userFile, BasicFileAttributes.class);
+            try (BufferedReader reader = Files.newBufferedReader(userFile, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    lineNumber++;
+                    if (line.trim().isEmpty() || line.startsWith("#"))
+                    {
+                        continue;
+                    }
+
+                    UserCredential loaded;
+                    try
+                    {
+                        loaded = UserCredential.parse(line);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        log.warn("Skipping line " + lineNumber + " of user file " + userFile + ": " + e.getMessage());
+                        continue;
+                    }
+
+                    String key = normalize(loaded.getUsername());
+                    if (key.equals(configuredUsername) || !seen.add(key))
+                    {
+                        continue;
+                    }
+
+                    UserCredential[] previous = new UserCredential[1];
+                    UserCredential stored = users.compute(key, (k, current) ->
+                    {
+                        previous[0] = current;
+                        return current != null && current.isLoadedAs(loaded) ? current : loaded;
+                    });
+                    if (stored == loaded)
+                    {
+                        changed(previous[0], loaded);
+                        changed++;
+                    }
+                }
+            }
+            lastModifiedTime = attributes.lastModifiedTime();
+            lastSize = attributes.size();
+        }
+        catch (IOException e)
+        {
+            log.error("Unable to read user file " + userFile + ": " + e);
+            return;
+        }
+
+        int removed = 0;
+        for (Map.Entry<String, UserCredential> e : users.entrySet())
+        {
+            if (e.getValue().isLoaded() && !seen.contains(e.getKey()) && users.remove(e.getKey(), e.getValue()))
+            {
+                changed(e.getValue(), null);
+                removed++;
+            }
+        }
+        log.info("Read " + seen.size() + " users from " + userFile + " in " + (System.currentTimeMillis() - start)
+                 + " ms: " + changed + " added or changed, " + removed + " removed");
+    }
+
+    /**
+     * Updates the mail index for a user added, changed or removed by reading the user file, and tells the listener.
+     */
+    private void changed(UserCredential previous, UserCredential current)
+    {
+        if (previous != null)
+        {
+            unindexMail(previous);
+        }
+        if (current != null)
+        {
+            indexMail(current);
+        }
+        changeListener.accept(previous, current);
+    }
+
+    private void indexMail(UserCredential user)
+    {
+        if (user.getMail() != null)
+        {
+            usernamesByMail.compute(normalize(user.getMail()), (key, usernames) ->
+            {
+                Set<String> updated = usernames != null ? usernames : ConcurrentHashMap.newKeySet();
+                updated.add(normalize(user.getUsername()));
+                return updated;
+            });
+        }
+    }
+
+    private void unindexMail(UserCredential user)
+    {
+        if (user.getMail() != null)
+        {
+            usernamesByMail.computeIfPresent(normalize(user.getMail()), (key, usernames) ->
+            {
+                usernames.remove(normalize(user.getUsername()));
+                return usernames.isEmpty() ? null : usernames;
+            });
+        }
+    }
+
+    /**
+     * Checks the user file for changes on a thread of its own. It holds the store only weakly, so that the store can
+     * be garbage collected once it is no longer in use, such as after the validator is configured again, and then
+     * ends.
+     */
+    private static class Checker implements Runnable
+    {
+        private final WeakReference<UserCredentialStore> storeReference;
+
+        private Checker(UserCredentialStore store)
+        {
+            this.storeReference = new WeakReference<>(store);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Thread.sleep(CHECK_INTERVAL_MILLIS);
+
+                    // The store is only referenced while it is checked, not while waiting for the next check
+                    UserCredentialStore store = storeReference.get();
+                    if (store == null)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        store.reloadIfModified();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        log.error("Unable to reload user file " + store.userFile, e);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a username or mail address in lower case, to compare without regard to case.
+     */
+    static String normalize(String value)
+    {
+        return value.toLowerCase(Locale.ROOT);
+    }
+}